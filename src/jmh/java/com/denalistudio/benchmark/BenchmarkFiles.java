@@ -0,0 +1,132 @@
+package com.denalistudio.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Generated inputs, kept in -Dbenchmark.dir (default <tmp>/ds-benchmarks) between runs so a 5 GB file
+// is written only once. Files smaller than RAM are read from the page cache after the first iteration,
+// so drop the caches between runs when the disk itself is measured
+final class BenchmarkFiles {
+    private static final int ZIP_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    private BenchmarkFiles() {
+    }
+
+    static Path dir() throws IOException {
+        String configured = System.getProperty("benchmark.dir");
+        Path dir = configured != null ? Paths.get(configured) : Paths.get(System.getProperty("java.io.tmpdir"), "ds-benchmarks");
+        return Files.createDirectories(dir);
+    }
+
+    // "100MB", "1GB", "5GB", or plain bytes
+    static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        if (value.endsWith("GB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024 * 1024 * 1024;
+        }
+        if (value.endsWith("MB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024 * 1024;
+        }
+        if (value.endsWith("KB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024;
+        }
+        return Long.parseLong(value);
+    }
+
+    // Pseudo-random bytes that neither compress nor repeat, like an already compressed backup
+    static Path data(String size) throws IOException {
+        long bytes = parseSize(size);
+        Path file = dir().resolve("data-" + size + ".bin");
+        if (Files.isRegularFile(file) && Files.size(file) == bytes) {
+            return file;
+        }
+
+        Path temp = Files.createTempFile(dir(), "data-", ".tmp");
+        SplittableRandom random = new SplittableRandom(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < bytes) {
+                buffer.clear();
+                while (buffer.remaining() >= Long.BYTES) {
+                    buffer.putLong(random.nextLong());
+                }
+                buffer.flip();
+                buffer.limit((int) Math.min(buffer.limit(), bytes - written));
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        }
+        System.out.println("Generated " + file + " (" + bytes + " bytes)");
+        return Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // A ZIP archive of 64 MB text-like entries, roughly size bytes before compression, deflated at the
+    // fastest level the way site backups are usually packed
+    static Path zip(String size) throws IOException {
+        long bytes = parseSize(size);
+        Path file = dir().resolve("data-" + size + ".zip");
+        if (Files.isRegularFile(file)) {
+            return file;
+        }
+
+        Path temp = Files.createTempFile(dir(), "data-", ".tmp");
+        SplittableRandom random = new SplittableRandom(bytes);
+        byte[] chunk = new byte[1024 * 1024];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(temp))) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            long written = 0;
+            for (int entry = 1; written < bytes; entry++) {
+                zip.putNextEntry(new ZipEntry("files/entry-" + entry + ".txt"));
+                long entryEnd = Math.min(bytes, written + ZIP_ENTRY_SIZE);
+                while (written < entryEnd) {
+                    int length = (int) Math.min(chunk.length, entryEnd - written);
+                    fillText(random, chunk, length);
+                    zip.write(chunk, 0, length);
+                    written += length;
+                }
+                zip.closeEntry();
+            }
+        }
+        System.out.println("Generated " + file + " (" + Files.size(temp) + " bytes, " + bytes + " uncompressed)");
+        return Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Path scratchDir(String name) throws IOException {
+        Path scratch = dir().resolve("scratch-" + name);
+        deleteRecursively(scratch);
+        return Files.createDirectories(scratch);
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    // Lower-case letters and spaces compress to about 60%, between source code and logs
+    private static void fillText(SplittableRandom random, byte[] chunk, int length) {
+        for (int i = 0; i < length; i++) {
+            int next = random.nextInt(32);
+            chunk[i] = (byte) (next < 26 ? 'a' + next : ' ');
+        }
+    }
+}
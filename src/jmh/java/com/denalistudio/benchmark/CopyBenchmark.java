@@ -0,0 +1,103 @@
+package com.denalistudio.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+// Copying a whole file the ways the services do: streams with a byte[] (8 KB in SftpService, 4 KB in
+// PdfTransformer, 1 KB in the old splitter), channels with heap or direct buffers, and transferTo
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+    @Param({"100MB", "1GB", "5GB"})
+    public String fileSize;
+
+    private Path source;
+    private Path target;
+
+    // Only the buffered copies are swept over buffer sizes
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"1024", "4096", "8192", "65536", "1048576"})
+        public int bufferSize;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = BenchmarkFiles.data(fileSize);
+        target = BenchmarkFiles.scratchDir("copy").resolve("copy.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(target.getParent());
+    }
+
+    @Benchmark
+    public long stream(Buffer buffer) throws IOException {
+        long copied = 0;
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = Files.newOutputStream(target)) {
+            byte[] bytes = new byte[buffer.bufferSize];
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                out.write(bytes, 0, read);
+                copied += read;
+            }
+        }
+        return copied;
+    }
+
+    @Benchmark
+    public long heapBuffer(Buffer buffer) throws IOException {
+        return channelCopy(ByteBuffer.allocate(buffer.bufferSize));
+    }
+
+    @Benchmark
+    public long directBuffer(Buffer buffer) throws IOException {
+        return channelCopy(ByteBuffer.allocateDirect(buffer.bufferSize));
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = open(target)) {
+            long size = in.size();
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(copied, size - copied, out);
+            }
+            return copied;
+        }
+    }
+
+    private long channelCopy(ByteBuffer buffer) throws IOException {
+        long copied = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = open(target)) {
+            while (in.read(buffer.clear()) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += out.write(buffer);
+                }
+            }
+        }
+        return copied;
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+}
@@ -0,0 +1,77 @@
+package com.denalistudio.benchmark;
+
+import com.denalistudio.service.PartManifest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// The checksums behind the manifest and dedup: SHA-256 and CRC32C alone over heap and direct buffers of
+// several sizes, and PartManifest.describeFile, which computes both in one pass as hashContent does
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+    @Param({"100MB", "1GB", "5GB"})
+    public String fileSize;
+
+    private Path source;
+
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"8192", "65536", "1048576"})
+        public int bufferSize;
+
+        @Param({"false", "true"})
+        public boolean direct;
+
+        ByteBuffer allocate() {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = BenchmarkFiles.data(fileSize);
+    }
+
+    @Benchmark
+    public byte[] sha256(Buffer buffer) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        read(buffer.allocate(), digest::update);
+        return digest.digest();
+    }
+
+    @Benchmark
+    public long crc32c(Buffer buffer) throws IOException {
+        CRC32C crc = new CRC32C();
+        read(buffer.allocate(), crc::update);
+        return crc.getValue();
+    }
+
+    // 900 MB parts, the BACKUP_MAX_PART_MB default
+    @Benchmark
+    public PartManifest describeFile() throws IOException {
+        return PartManifest.describeFile(source, Files.size(source), 900L * 1024 * 1024, number -> "part" + number);
+    }
+
+    private void read(ByteBuffer buffer, Consumer<ByteBuffer> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) != -1) {
+                consumer.accept(buffer.flip());
+            }
+        }
+    }
+}
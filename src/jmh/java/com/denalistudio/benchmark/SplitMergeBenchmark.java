@@ -0,0 +1,82 @@
+package com.denalistudio.benchmark;
+
+import com.denalistudio.service.PartManifest;
+import com.denalistudio.service.ZipFileMerger;
+import com.denalistudio.service.ZipFileSplitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ZipFileSplitter and ZipFileMerger end to end. The manifest is computed once per trial, so split
+// measures the copying alone; HashBenchmark measures the checksumming
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitMergeBenchmark {
+    @Param({"100MB", "1GB", "5GB"})
+    public String fileSize;
+
+    // BACKUP_MAX_PART_MB defaults to 900
+    @Param({"100MB", "900MB"})
+    public String partSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path source;
+    private PartManifest manifest;
+    private Path splitDir;
+    private Path partsDir;
+    private List<Path> parts;
+    private PartManifest partsManifest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        source = BenchmarkFiles.data(fileSize);
+        long bytes = BenchmarkFiles.parseSize(partSize);
+        String name = source.getFileName().toString();
+        manifest = PartManifest.describeFile(source, Files.size(source), bytes, number -> name + ".part" + number);
+
+        splitDir = BenchmarkFiles.scratchDir("split");
+        partsDir = BenchmarkFiles.scratchDir("parts");
+        parts = ZipFileSplitter.splitFile(source, partsDir, bytes, threads, false, manifest, null, part -> { });
+        partsManifest = PartManifest.fromJson(Files.readString(partsDir.resolve(name + PartManifest.SUFFIX)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(splitDir);
+        BenchmarkFiles.deleteRecursively(partsDir);
+    }
+
+    @Benchmark
+    public List<Path> split() throws IOException, InterruptedException {
+        return ZipFileSplitter.splitFile(source, splitDir, BenchmarkFiles.parseSize(partSize), threads, false, manifest, null, part -> { });
+    }
+
+    @Benchmark
+    public List<Path> splitPreallocated() throws IOException, InterruptedException {
+        return ZipFileSplitter.splitFile(source, splitDir, BenchmarkFiles.parseSize(partSize), threads, true, manifest, null, part -> { });
+    }
+
+    // Plain concatenation at the offsets the part sizes add up to
+    @Benchmark
+    public Path merge() throws IOException {
+        Path merged = partsDir.resolve("merged.bin");
+        ZipFileMerger.mergeFiles(parts, merged, threads);
+        return merged;
+    }
+
+    // As the restore runs it: every part's CRC32C checked before it is placed, then the whole-file SHA-256
+    @Benchmark
+    public Path mergeVerified() throws IOException {
+        return ZipFileMerger.mergeFiles(partsManifest, parts, partsDir.resolve("merged.bin"), threads);
+    }
+}
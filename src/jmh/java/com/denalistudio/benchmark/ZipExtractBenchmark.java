@@ -0,0 +1,107 @@
+package com.denalistudio.benchmark;
+
+import com.denalistudio.service.ZipIntegrityChecker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Unpacking a backup the way SftpService.extractZip does, over a sweep of copy buffers and with
+// InputStream.transferTo, and the CRC check ZipIntegrityChecker runs before an upload
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZipExtractBenchmark {
+    // Uncompressed size of the archive
+    @Param({"100MB", "1GB", "5GB"})
+    public String fileSize;
+
+    private Path zip;
+    private Path outputDir;
+
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"8192", "65536", "1048576"})
+        public int bufferSize;
+
+        @Param({"false", "true"})
+        public boolean bufferedInput;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Checker {
+        @Param({"1", "4"})
+        public int crcThreads;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        zip = BenchmarkFiles.zip(fileSize);
+        outputDir = BenchmarkFiles.scratchDir("extract");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(outputDir);
+    }
+
+    @Benchmark
+    public long extract(Buffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.bufferSize];
+        return extract(buffer.bufferedInput, (in, out) -> {
+            long copied = 0;
+            int read;
+            while ((read = in.read(bytes)) > 0) {
+                out.write(bytes, 0, read);
+                copied += read;
+            }
+            return copied;
+        });
+    }
+
+    @Benchmark
+    public long extractTransferTo() throws IOException {
+        return extract(false, InputStream::transferTo);
+    }
+
+    @Benchmark
+    public String checkCrcs(Checker checker) {
+        return new ZipIntegrityChecker(checker.crcThreads).check(zip);
+    }
+
+    // The ZipInputStream reads the archive through a 512-byte buffer unless it is wrapped
+    private long extract(boolean bufferedInput, Copy copy) throws IOException {
+        InputStream file = Files.newInputStream(zip);
+        long extracted = 0;
+        try (ZipInputStream zis = new ZipInputStream(bufferedInput ? new BufferedInputStream(file, 1024 * 1024) : file)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                Path destPath = outputDir.resolve(entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(destPath);
+                } else {
+                    Files.createDirectories(destPath.getParent());
+                    try (OutputStream out = Files.newOutputStream(destPath)) {
+                        extracted += copy.copy(zis, out);
+                    }
+                }
+                zis.closeEntry();
+            }
+        }
+        return extracted;
+    }
+
+    private interface Copy {
+        long copy(InputStream in, OutputStream out) throws IOException;
+    }
+}
@@ -1,6 +1,7 @@
 package com.denalistudio;
 
 import com.denalistudio.service.BackupWatcher;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -12,11 +13,13 @@ public class Main {
         SpringApplication.run(Main.class, args);
     }
 
+    @Bean(destroyMethod = "stopWatching")
+    BackupWatcher backupWatcher(MeterRegistry meterRegistry) {
+        return new BackupWatcher("/var/wordpress_backups", meterRegistry);
+    }
+
     @Bean
-    CommandLineRunner startBackupWatcher() {
-        return args -> {
-            BackupWatcher watcher = new BackupWatcher("/var/wordpress_backups");
-            watcher.startWatching();
-        };
+    CommandLineRunner startBackupWatcher(BackupWatcher watcher) {
+        return args -> watcher.startWatching();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+package com.denalistudio.controller;
+
+import com.denalistudio.service.BackupWatcher;
+import io.github.cdimascio.dotenv.Dotenv;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+@Component
+@Endpoint(id = "backupbandwidth")
+public class BackupBandwidthEndpoint {
+    @Autowired
+    private BackupWatcher backupWatcher;
+
+    private final String backupsApiKey;
+
+    public BackupBandwidthEndpoint() {
+        Dotenv dotenv;
+        String envPath = System.getenv("DS_SERVER_ENV_PATH");
+
+        if (envPath == null) {
+            throw new RuntimeException("DS_SERVER_ENV_PATH environment variable not set.");
+        }
+
+        dotenv = Dotenv.configure().directory(envPath).load();
+
+        this.backupsApiKey = dotenv.get("BACKUPS_API_KEY");
+    }
+
+    // Shows per-domain traffic, so it needs the key like /api/backups
+    @ReadOperation
+    public Map<String, Object> bandwidth(String apiKey) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        return backupWatcher.getBandwidthLimiter().describe();
+    }
+
+    @WriteOperation
+    public Map<String, Object> setBandwidth(String apiKey, long bytesPerSecond) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        backupWatcher.getBandwidthLimiter().setBytesPerSecond(bytesPerSecond);
+        return backupWatcher.getBandwidthLimiter().describe();
+    }
+}
@@ -0,0 +1,110 @@
+package com.denalistudio.controller;
+
+import com.denalistudio.service.BackupCatalog;
+import com.denalistudio.service.BackupWatcher;
+import io.github.cdimascio.dotenv.Dotenv;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Answers "which backups of this domain exist and where are they" from the local catalog
+@RestController
+@RequestMapping("/api/backups")
+public class BackupCatalogController {
+    private static final int MAX_LIMIT = 1000;
+
+    @Autowired
+    private BackupWatcher backupWatcher;
+
+    private final String backupsApiKey;
+
+    public BackupCatalogController() {
+        Dotenv dotenv;
+        String envPath = System.getenv("DS_SERVER_ENV_PATH");
+
+        if (envPath == null) {
+            throw new RuntimeException("DS_SERVER_ENV_PATH environment variable not set.");
+        }
+
+        dotenv = Dotenv.configure().directory(envPath).load();
+
+        this.backupsApiKey = dotenv.get("BACKUPS_API_KEY");
+    }
+
+    // from and to accept a date (2025-01-31, server time zone) or an instant (2025-01-31T12:00:00Z); to is exclusive
+    @GetMapping
+    public Map<String, Object> find(@RequestParam String apiKey, @RequestParam(required = false) String domain,
+                                    @RequestParam(required = false) String from, @RequestParam(required = false) String to,
+                                    @RequestParam(defaultValue = "100") int limit) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        long fromMillis;
+        long toMillis;
+        try {
+            fromMillis = from == null ? 0 : parseTime(from, false);
+            toMillis = to == null ? Long.MAX_VALUE : parseTime(to, true);
+        } catch (DateTimeParseException e) {
+            return Map.of("error", "Dates must look like 2025-01-31 or 2025-01-31T12:00:00Z");
+        }
+
+        long start = System.nanoTime();
+        List<BackupCatalog.Entry> backups = backupWatcher.getCatalog().find(domain, fromMillis, toMillis, Math.max(1, Math.min(limit, MAX_LIMIT)));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", backups.size());
+        result.put("lookupMicros", (System.nanoTime() - start) / 1000);
+        result.put("backups", backups);
+        return result;
+    }
+
+    @GetMapping("/latest")
+    public Object latest(@RequestParam String apiKey, @RequestParam String domain) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        BackupCatalog.Entry entry = backupWatcher.getCatalog().latest(domain);
+        return entry != null ? entry : Map.of("error", "No backups of " + domain);
+    }
+
+    @GetMapping("/task/{taskId}")
+    public Object byTask(@RequestParam String apiKey, @PathVariable String taskId) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        BackupCatalog.Entry entry = backupWatcher.getCatalog().byTask(taskId);
+        return entry != null ? entry : Map.of("error", "No backup attached to task " + taskId);
+    }
+
+    @GetMapping("/domains")
+    public Object domains(@RequestParam String apiKey) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        return backupWatcher.getCatalog().domains();
+    }
+
+    // A bare date as the upper bound includes that whole day
+    private static long parseTime(String value, boolean upperBound) {
+        if (value.length() == 10) {
+            LocalDate date = LocalDate.parse(value);
+            return (upperBound ? date.plusDays(1) : date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        return Instant.parse(value).toEpochMilli();
+    }
+}
@@ -0,0 +1,64 @@
+package com.denalistudio.controller;
+
+import com.denalistudio.service.BackupScheduler;
+import com.denalistudio.service.BackupWatcher;
+import io.github.cdimascio.dotenv.Dotenv;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+@Component
+@Endpoint(id = "backupqueue")
+public class BackupQueueEndpoint {
+    @Autowired
+    private BackupWatcher backupWatcher;
+
+    private final String backupsApiKey;
+
+    public BackupQueueEndpoint() {
+        Dotenv dotenv;
+        String envPath = System.getenv("DS_SERVER_ENV_PATH");
+
+        if (envPath == null) {
+            throw new RuntimeException("DS_SERVER_ENV_PATH environment variable not set.");
+        }
+
+        dotenv = Dotenv.configure().directory(envPath).load();
+
+        this.backupsApiKey = dotenv.get("BACKUPS_API_KEY");
+    }
+
+    // Lists client domains and backup paths, so it needs the key like /api/backups
+    @ReadOperation
+    public Map<String, Object> queue(String apiKey) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        return backupWatcher.getBackupScheduler().describe();
+    }
+
+    // Moves a pending job ahead of (HIGH) or behind (LOW) the others
+    @WriteOperation
+    public Map<String, Object> setPriority(String apiKey, String jobId, String priority) {
+        if (!backupsApiKey.equals(apiKey)) {
+            return Map.of("error", "Invalid API key");
+        }
+
+        BackupScheduler.Priority value;
+        try {
+            value = BackupScheduler.Priority.valueOf(priority.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Map.of("error", "Priority must be HIGH, NORMAL or LOW");
+        }
+
+        if (!backupWatcher.getBackupScheduler().setPriority(jobId, value)) {
+            return Map.of("error", "No pending job " + jobId);
+        }
+        return backupWatcher.getBackupScheduler().describe();
+    }
+}
@@ -1,11 +1,20 @@
 package com.denalistudio.controller;
 
+import com.denalistudio.service.ChunkRecipe;
+import com.denalistudio.service.PartAssembler;
+import com.denalistudio.service.VirtualBackupFile;
+import com.denalistudio.service.PartManifest;
 import com.denalistudio.service.ZipFileMerger;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.Gson;
 import io.github.cdimascio.dotenv.Dotenv;
 import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.ContentDisposition;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -13,12 +22,20 @@ import org.springframework.web.bind.annotation.RestController;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -27,12 +44,19 @@ import okhttp3.*;
 @RestController
 @RequestMapping("/api")
 public class ZipMergeController {
+    // Seconds a client is asked to wait before retrying a range whose parts are still coming from ClickUp
+    private static final int RETRY_AFTER_SECONDS = 30;
+
     private final String tempDirPath;
     private final String tempUrl;
+    private final String downloadBaseUrl;
     private final String backupsApiKey;
     private final String clickUpApiKey;
     private final OkHttpClient client = new OkHttpClient();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, VirtualBackupFile> virtualFiles = new ConcurrentHashMap<>();
+    // Checks the parts of backups found on disk after a restart
+    private final ExecutorService partVerifier = Executors.newFixedThreadPool(2);
 
     public ZipMergeController() {
         Dotenv dotenv;
@@ -47,6 +71,8 @@ public class ZipMergeController {
         // Load environment variables
         this.tempDirPath = dotenv.get("TEMP_DIR");
         this.tempUrl = dotenv.get("TEMP_URL");
+        // Public URL of this server; when set, backups with a manifest are served from their parts
+        this.downloadBaseUrl = dotenv.get("BACKUPS_DOWNLOAD_URL");
         this.backupsApiKey = dotenv.get("BACKUPS_API_KEY");
         this.clickUpApiKey = dotenv.get("CLICKUP_API_KEY");
     }
@@ -86,9 +112,42 @@ public class ZipMergeController {
             if (attachmentsNode != null && attachmentsNode.isArray()) {
                 List<Path> partFiles = new ArrayList<>();
 
+                // Chunked backups are rebuilt from their recipe instead of merging parts
+                String recipeUrl = findAttachmentUrl(attachmentsNode, ChunkRecipe.SUFFIX);
+                if (recipeUrl != null) {
+                    Path restoredFile = restoreFromRecipe(recipeUrl, tempDir);
+                    String downloadUrl = tempUrl + "/" + uniqueId + "/" + restoredFile.getFileName();
+                    postDownloadLink(taskId, downloadUrl);
+                    scheduleCleanup(tempDir);
+                    return "Restore completed. Download URL: " + downloadUrl;
+                }
+
+                // Backups with a manifest are served straight from their parts while they download, or
+                // assembled and verified part by part as the downloads finish
+                String manifestUrl = findAttachmentUrl(attachmentsNode, PartManifest.SUFFIX);
+                if (manifestUrl != null && downloadBaseUrl != null && !downloadBaseUrl.isBlank()) {
+                    String downloadUrl = serveFromParts(uniqueId, manifestUrl, attachmentsNode, tempDir);
+                    postDownloadLink(taskId, downloadUrl);
+                    scheduleCleanup(tempDir);
+                    return "Download started. Download URL: " + downloadUrl;
+                }
+                if (manifestUrl != null) {
+                    Path assembledFile = assembleFromManifest(manifestUrl, attachmentsNode, tempDir);
+                    String downloadUrl = tempUrl + "/" + uniqueId + "/" + assembledFile.getFileName();
+                    postDownloadLink(taskId, downloadUrl);
+                    scheduleCleanup(tempDir);
+                    return "Zip merge completed. Download URL: " + downloadUrl;
+                }
+
                 // Download each attachment
                 for (JsonNode attachment : attachmentsNode) {
                     String fileUrl = attachment.get("url_w_host").asText();
+
+                    // The part manifest is not part of the backup itself
+                    if (fileUrl.endsWith(PartManifest.SUFFIX)) {
+                        continue;
+                    }
+
                     Path partFile = downloadFile(fileUrl, tempDir);
                     if (partFile != null) {
                         partFiles.add(partFile);
@@ -98,53 +157,13 @@ public class ZipMergeController {
                 // Merge the parts
                 if (!partFiles.isEmpty()) {
                     Path firstPart = partFiles.get(0);
-                    ZipFileMerger.mergeFile(firstPart);
-                    Path mergedFile = tempDir.resolve(ZipFileMerger.getBaseName(firstPart.getFileName().toString()));
+                    Path mergedFile = ZipFileMerger.mergeFile(firstPart);
                     if (!Files.exists(mergedFile)) {
                         return "Error merging files";
                     }
                     String downloadUrl = tempUrl + "/" + uniqueId + "/" + mergedFile.getFileName();
-
-                    Map<String, String> requestBodyMap = new HashMap<>();
-                    requestBodyMap.put("comment_text", "Download link (valid for 1 hour): " + downloadUrl);
-
-                    Gson gson = new Gson();
-                    String json = gson.toJson(requestBodyMap);
-
-                    RequestBody body = RequestBody.create(MediaType.parse("application/json"), json);
-
-                    Request commentRequest = new Request.Builder()
-                            .url("https://api.clickup.com/api/v2/task/" + taskId + "/comment")
-                            .post(body)
-                            .addHeader("accept", "application/json")
-                            .addHeader("content-type", "application/json")
-                            .addHeader("Authorization", clickUpApiKey)
-                            .build();
-
-                    try (Response commentResponse = client.newCall(commentRequest).execute()) {
-                        if (!commentResponse.isSuccessful()) {
-                            System.err.println("Failed to post comment: " + commentResponse);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Schedule cleanup
-                    scheduler.schedule(() -> {
-                        try {
-                            Files.walk(tempDir)
-                                    .sorted(Comparator.reverseOrder())
-                                    .forEach(path -> {
-                                        try {
-                                            Files.delete(path);
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
-                                    });
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }, 1, TimeUnit.HOURS);
+                    postDownloadLink(taskId, downloadUrl);
+                    scheduleCleanup(tempDir);
 
                     // Clean up part files
                     for (Path partFile : partFiles) {
@@ -162,6 +181,356 @@ public class ZipMergeController {
         }
     }
 
+    private void postDownloadLink(String taskId, String downloadUrl) {
+        Map<String, String> requestBodyMap = new HashMap<>();
+        requestBodyMap.put("comment_text", "Download link (valid for 1 hour): " + downloadUrl);
+
+        Gson gson = new Gson();
+        String json = gson.toJson(requestBodyMap);
+
+        RequestBody body = RequestBody.create(MediaType.parse("application/json"), json);
+
+        Request commentRequest = new Request.Builder()
+                .url("https://api.clickup.com/api/v2/task/" + taskId + "/comment")
+                .post(body)
+                .addHeader("accept", "application/json")
+                .addHeader("content-type", "application/json")
+                .addHeader("Authorization", clickUpApiKey)
+                .build();
+
+        try (Response commentResponse = client.newCall(commentRequest).execute()) {
+            if (!commentResponse.isSuccessful()) {
+                System.err.println("Failed to post comment: " + commentResponse);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void scheduleCleanup(Path tempDir) {
+        scheduler.schedule(() -> {
+            try {
+                Files.walk(tempDir)
+                        .sorted(Comparator.reverseOrder())
+                        .forEach(path -> {
+                            try {
+                                Files.delete(path);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, 1, TimeUnit.HOURS);
+    }
+
+    private static String findAttachmentUrl(JsonNode attachmentsNode, String suffix) {
+        for (JsonNode attachment : attachmentsNode) {
+            String fileUrl = attachment.get("url_w_host").asText();
+            if (fileUrl.endsWith(suffix)) {
+                return fileUrl;
+            }
+        }
+        return null;
+    }
+
+    private JsonNode fetchAttachments(String taskId) throws IOException {
+        Request request = new Request.Builder()
+                .url("https://api.clickup.com/api/v2/task/" + taskId)
+                .addHeader("accept", "application/json")
+                .addHeader("Authorization", clickUpApiKey)
+                .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response);
+            }
+            return new ObjectMapper().readTree(response.body().string()).get("attachments");
+        }
+    }
+
+    // Downloads every pack the recipe refers to, which may live on the tasks of earlier backups, and
+    // copies the chunks out of them in recipe order
+    private Path restoreFromRecipe(String recipeUrl, Path tempDir) throws IOException {
+        Path recipeFile = downloadFile(recipeUrl, tempDir);
+        ChunkRecipe recipe = ChunkRecipe.fromJson(Files.readString(recipeFile));
+        Map<String, JsonNode> attachmentsByTask = new HashMap<>();
+        Map<String, Path> packFiles = new HashMap<>();
+
+        for (String packKey : recipe.packs()) {
+            String packTaskId = packKey.substring(0, packKey.indexOf('/'));
+            String packName = packKey.substring(packKey.indexOf('/') + 1);
+            JsonNode attachments = attachmentsByTask.get(packTaskId);
+            if (attachments == null) {
+                attachments = fetchAttachments(packTaskId);
+                attachmentsByTask.put(packTaskId, attachments);
+            }
+
+            String packUrl = attachments == null ? null : findAttachmentUrl(attachments, "/" + packName);
+            if (packUrl == null) {
+                throw new IOException("Pack " + packName + " is no longer attached to task " + packTaskId);
+            }
+            Path packDir = Files.createDirectories(tempDir.resolve("packs").resolve(packTaskId));
+            packFiles.put(packKey, downloadFile(packUrl, packDir));
+        }
+
+        Path restoredFile = tempDir.resolve(recipe.getFileName());
+        try {
+            recipe.restore(restoredFile, packFiles);
+        } finally {
+            for (Path packFile : packFiles.values()) {
+                Files.deleteIfExists(packFile);
+            }
+            Files.deleteIfExists(recipeFile);
+        }
+        System.out.println("Restored " + restoredFile + " from " + recipe.getChunks().size() + " chunks in " + packFiles.size() + " packs");
+        return restoredFile;
+    }
+
+    // Downloads the parts in order, a few at a time, and hands each to the virtual file once it is checked.
+    // The link works right away: ranges whose parts haven't arrived yet are answered with a Retry-After
+    private String serveFromParts(String uniqueId, String manifestUrl, JsonNode attachmentsNode, Path tempDir) throws IOException {
+        Path manifestFile = downloadFile(manifestUrl, tempDir);
+        PartManifest manifest = PartManifest.fromJson(Files.readString(manifestFile));
+        Files.move(manifestFile, tempDir.resolve(manifest.getFileName() + PartManifest.SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        Path partsDir = Files.createDirectories(tempDir.resolve("parts"));
+
+        VirtualBackupFile file = new VirtualBackupFile(manifest);
+        virtualFiles.put(uniqueId, file);
+        scheduler.schedule(() -> virtualFiles.remove(uniqueId), 1, TimeUnit.HOURS);
+
+        Map<Integer, String> partUrls = new TreeMap<>();
+        for (JsonNode attachment : attachmentsNode) {
+            String fileUrl = attachment.get("url_w_host").asText();
+            PartManifest.Part part = fileUrl.endsWith(PartManifest.SUFFIX) ? null : manifest.partFor(fileUrl.substring(fileUrl.lastIndexOf('/') + 1));
+            if (part != null) {
+                partUrls.putIfAbsent(part.getNumber(), fileUrl);
+            }
+        }
+
+        ExecutorService downloads = Executors.newFixedThreadPool(4);
+        for (PartManifest.Part part : manifest.getParts()) {
+            String partUrl = partUrls.get(part.getNumber());
+            if (partUrl == null) {
+                file.partFailed(part.getNumber(), new IOException(part.getName() + " is not attached to the task"));
+                continue;
+            }
+            downloads.submit(() -> {
+                try {
+                    Path partFile = downloadFile(partUrl, partsDir);
+                    Path named = partsDir.resolve(part.getName());
+                    if (!partFile.equals(named)) {
+                        partFile = Files.move(partFile, named, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    PartAssembler.verify(partFile, part);
+                    file.partReady(part.getNumber(), partFile);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error downloading part " + part.getNumber() + " of " + manifest.getFileName() + ": " + e.getMessage());
+                    file.partFailed(part.getNumber(), e);
+                }
+            });
+        }
+        downloads.shutdown();
+
+        return downloadBaseUrl.replaceAll("/+$", "") + "/api/zip-merge/download/" + uniqueId + "/"
+                + URLEncoder.encode(manifest.getFileName(), StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    // The parts of a backup as one file, with single byte ranges. A range inside one part is handed to
+    // Tomcat's sendfile; other ranges are streamed part by part with transferTo. A range that needs a
+    // part still downloading gets 503 with Retry-After rather than holding a request thread until it arrives
+    @GetMapping("/zip-merge/download/{id}/{fileName}")
+    public void download(@PathVariable String id, @PathVariable String fileName, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        VirtualBackupFile file = findVirtualFile(id, fileName);
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Backup not found or expired");
+            return;
+        }
+
+        long size = file.size();
+        String etag = "\"" + (file.getManifest().getSha256() != null ? file.getManifest().getSha256() : String.valueOf(file.getManifest().getCreatedAt())) + "\"";
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setHeader("Content-Disposition", ContentDisposition.attachment().filename(fileName, StandardCharsets.UTF_8).build().toString());
+        response.setContentType("application/octet-stream");
+
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] requested = parseRange(range, size);
+            if (requested != null && requested.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + size);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (requested != null) {
+                start = requested[0];
+                end = requested[1];
+                partial = true;
+            }
+        }
+
+        boolean head = "HEAD".equals(request.getMethod());
+        if (!head && size > 0) {
+            int missing;
+            try {
+                missing = file.missingPart(start, end);
+            } catch (IOException e) {
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.getMessage());
+                return;
+            }
+            if (missing > 0) {
+                response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Part " + missing + " of " + fileName + " is still downloading");
+                return;
+            }
+        }
+
+        if (partial) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        response.setContentLengthLong(end - start + 1);
+        if (head || size == 0) {
+            return;
+        }
+
+        PartManifest.Part part = file.partContaining(start, end);
+        if (part != null && Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            Path partFile = file.readyPart(part.getNumber());
+            request.setAttribute("org.apache.tomcat.sendfile.filename", partFile.toAbsolutePath().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start - part.getOffset());
+            request.setAttribute("org.apache.tomcat.sendfile.end", end - part.getOffset() + 1);
+            return;
+        }
+
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        file.transferTo(start, end, out);
+        response.flushBuffer();
+    }
+
+    // Served from memory while its downloads run, afterwards (e.g. after a restart) from the parts on disk,
+    // which are checked once and then kept in memory like a fresh download
+    private VirtualBackupFile findVirtualFile(String id, String fileName) {
+        try {
+            UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        VirtualBackupFile file = virtualFiles.get(id);
+        if (file != null) {
+            return file.getManifest().getFileName().equals(fileName) ? file : null;
+        }
+
+        Path manifestFile = Paths.get(tempDirPath, id, fileName + PartManifest.SUFFIX);
+        if (fileName.contains("/") || fileName.contains("\\") || !Files.isRegularFile(manifestFile)) {
+            return null;
+        }
+        try {
+            PartManifest manifest = PartManifest.fromJson(Files.readString(manifestFile));
+            if (!fileName.equals(manifest.getFileName())) {
+                return null;
+            }
+            return virtualFiles.computeIfAbsent(id, key -> {
+                scheduler.schedule(() -> virtualFiles.remove(id), 1, TimeUnit.HOURS);
+                return VirtualBackupFile.fromDirectory(manifest, manifestFile.resolveSibling("parts"), partVerifier);
+            });
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading " + manifestFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A single "bytes=" range as {start, end}, an empty array when it can't be satisfied, null when the
+    // header is malformed or asks for several ranges, which is answered with the whole file
+    private static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                end = Math.min(end, size - 1);
+            }
+            return start < size ? new long[]{start, end} : new long[0];
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Parts are downloaded a few at a time, each checked and copied to its offset as soon as it is there and
+    // then deleted, so at most a handful of parts sit on disk next to the assembled file
+    private Path assembleFromManifest(String manifestUrl, JsonNode attachmentsNode, Path tempDir) throws IOException {
+        Path manifestFile = downloadFile(manifestUrl, tempDir);
+        PartManifest manifest = PartManifest.fromJson(Files.readString(manifestFile));
+        Files.deleteIfExists(manifestFile);
+        PartAssembler assembler = new PartAssembler(manifest, tempDir.resolve(manifest.getFileName()));
+        Path partsDir = Files.createDirectories(tempDir.resolve("parts"));
+
+        // A part attached twice by a retried upload is only downloaded once
+        Map<String, String> partUrls = new LinkedHashMap<>();
+        for (JsonNode attachment : attachmentsNode) {
+            String fileUrl = attachment.get("url_w_host").asText();
+            String fileName = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+            if (!fileUrl.endsWith(PartManifest.SUFFIX) && assembler.partFor(fileName) != null) {
+                partUrls.putIfAbsent(fileName, fileUrl);
+            }
+        }
+
+        ExecutorService downloads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> placements = new ArrayList<>();
+            for (String partUrl : partUrls.values()) {
+                placements.add(downloads.submit(() -> {
+                    Path partFile = downloadFile(partUrl, partsDir);
+                    try {
+                        return assembler.place(partFile);
+                    } finally {
+                        Files.deleteIfExists(partFile);
+                    }
+                }));
+            }
+            for (Future<Integer> placement : placements) {
+                placement.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Error assembling " + manifest.getFileName() + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while assembling " + manifest.getFileName(), e);
+        } finally {
+            downloads.shutdownNow();
+        }
+        return assembler.finish();
+    }
+
     private Path downloadFile(String fileUrl, Path tempDir) throws IOException {
         Request request = new Request.Builder()
                 .url(fileUrl)
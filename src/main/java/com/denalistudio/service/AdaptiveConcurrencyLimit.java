@@ -0,0 +1,74 @@
+package com.denalistudio.service;
+
+// Additive-increase/multiplicative-decrease limit on concurrent uploads. Every healthy upload adds
+// 1/limit (one connection per round of uploads), a failure or an upload much slower per byte than the
+// best recent ones cuts the limit by a factor, at most once per cooldown so one congestion event is
+// not punished several times. Not thread-safe, the UploadScheduler calls it under its lock
+public class AdaptiveConcurrencyLimit {
+    private static final double BACKOFF = 0.7;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BASELINE_DRIFT = 1.02;
+    private static final long COOLDOWN_MILLIS = 10_000;
+
+    private final int min;
+    private final int max;
+    private double limit;
+    private double baselineMillisPerMb;
+    private long lastDecrease;
+
+    public AdaptiveConcurrencyLimit(int initial, int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = Math.min(this.max, Math.max(this.min, initial));
+    }
+
+    public int current() {
+        return (int) limit;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    // Returns true when the limit changed. The limit only grows while it is actually the bottleneck
+    public boolean onSuccess(long bytes, long millis, int inFlight) {
+        int before = current();
+
+        // Uploads below 1 MB (manifests) are dominated by request overhead and say nothing about the link
+        if (bytes >= 1024 * 1024 && millis > 0) {
+            double millisPerMb = millis / (bytes / (1024.0 * 1024.0));
+
+            // The baseline follows the best recent latency, drifting up slowly so it can recover from a
+            // one-off fast upload
+            baselineMillisPerMb = baselineMillisPerMb == 0 ? millisPerMb : Math.min(baselineMillisPerMb * BASELINE_DRIFT, millisPerMb);
+            if (millisPerMb > baselineMillisPerMb * LATENCY_TOLERANCE) {
+                decrease();
+                return current() != before;
+            }
+        }
+
+        if (inFlight >= current()) {
+            limit = Math.min(max, limit + 1.0 / limit);
+        }
+        return current() != before;
+    }
+
+    public boolean onFailure() {
+        int before = current();
+        decrease();
+        return current() != before;
+    }
+
+    private void decrease() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease < COOLDOWN_MILLIS) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(min, limit * BACKOFF);
+    }
+}
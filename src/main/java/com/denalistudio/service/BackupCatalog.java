@@ -0,0 +1,180 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Every completed backup with where it lives in ClickUp, persisted as an append-only log and indexed in
+// memory by domain and completion time, so lookups never need a ClickUp search
+public class BackupCatalog {
+    private final Path catalogFile;
+    private final Gson gson = new Gson();
+    private final Map<String, NavigableMap<Long, List<Entry>>> byDomain = new HashMap<>();
+    private final NavigableMap<Long, List<Entry>> byTime = new TreeMap<>();
+    private final Map<String, Entry> byTaskId = new HashMap<>();
+    private FileChannel channel;
+
+    public BackupCatalog(Path stateDir) throws IOException {
+        Files.createDirectories(stateDir);
+        this.catalogFile = stateDir.resolve("backup-catalog.log");
+        if (Files.exists(catalogFile)) {
+            load();
+        }
+    }
+
+    public synchronized void record(BackupJob job, String outcome, String sameAsTaskId, String sink, String location) {
+        Entry entry = new Entry();
+        entry.jobId = job.getId();
+        entry.domain = job.getDomain();
+        entry.domainTaskId = job.getDomainTaskId();
+        entry.taskId = job.getTaskId();
+        entry.fileName = job.getFilePath().getFileName().toString();
+        entry.path = job.getFilePath().toString();
+        entry.detectedAt = job.getDetectedAt();
+        entry.completedAt = System.currentTimeMillis();
+        entry.size = job.getSize();
+        entry.sha256 = job.getContentHash();
+        entry.partSize = job.getPartSize();
+        entry.partCount = job.partCount();
+        entry.outcome = outcome;
+        entry.sameAsTaskId = sameAsTaskId;
+        entry.sink = sink;
+        entry.location = location;
+        entry.attachments = new TreeMap<>(job.getAttachmentIds());
+        put(entry);
+
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(catalogFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer line = ByteBuffer.wrap((gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error writing to the backup catalog: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Newest first, completed within [from, to); a null domain searches every domain
+    public synchronized List<Entry> find(String domain, long from, long to, int limit) {
+        NavigableMap<Long, List<Entry>> index = domain == null ? byTime : byDomain.get(domain);
+        List<Entry> result = new ArrayList<>();
+        if (index == null) {
+            return result;
+        }
+        for (List<Entry> entries : index.subMap(from, true, to, false).descendingMap().values()) {
+            for (int i = entries.size() - 1; i >= 0 && result.size() < limit; i--) {
+                result.add(entries.get(i));
+            }
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    public synchronized Entry latest(String domain) {
+        NavigableMap<Long, List<Entry>> index = byDomain.get(domain);
+        if (index == null || index.isEmpty()) {
+            return null;
+        }
+        List<Entry> entries = index.lastEntry().getValue();
+        return entries.get(entries.size() - 1);
+    }
+
+    public synchronized Entry byTask(String taskId) {
+        return byTaskId.get(taskId);
+    }
+
+    public synchronized Set<String> domains() {
+        return new TreeSet<>(byDomain.keySet());
+    }
+
+    public synchronized int size() {
+        return byTaskId.size();
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(catalogFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Entry entry = gson.fromJson(line, Entry.class);
+                    if (entry != null && entry.domain != null) {
+                        put(entry);
+                    }
+                } catch (JsonSyntaxException e) {
+                    System.err.println("Skipping unreadable catalog entry: " + line);
+                }
+            }
+        }
+        System.out.println("Loaded " + byTaskId.size() + " backups of " + byDomain.size() + " domains from the catalog");
+    }
+
+    private void put(Entry entry) {
+        byDomain.computeIfAbsent(entry.domain, domain -> new TreeMap<>())
+                .computeIfAbsent(entry.completedAt, time -> new ArrayList<>()).add(entry);
+        byTime.computeIfAbsent(entry.completedAt, time -> new ArrayList<>()).add(entry);
+        if (entry.taskId != null) {
+            byTaskId.put(entry.taskId, entry);
+        }
+    }
+
+    public static class Entry {
+        private String jobId;
+        private String domain;
+        private String domainTaskId;
+        private String taskId;
+        private String fileName;
+        private String path;
+        private long detectedAt;
+        private long completedAt;
+        private long size;
+        private String sha256;
+        private long partSize;
+        private int partCount;
+        private String outcome;
+        private String sameAsTaskId;
+        private String sink;
+        private String location;
+        private Map<String, String> attachments;
+
+        public String getJobId() { return jobId; }
+        public String getDomain() { return domain; }
+        public String getDomainTaskId() { return domainTaskId; }
+        public String getTaskId() { return taskId; }
+        public String getFileName() { return fileName; }
+        public String getPath() { return path; }
+        public long getDetectedAt() { return detectedAt; }
+        public long getCompletedAt() { return completedAt; }
+        public long getSize() { return size; }
+        public String getSha256() { return sha256; }
+        public long getPartSize() { return partSize; }
+        public int getPartCount() { return partCount; }
+        public String getOutcome() { return outcome; }
+        public String getSameAsTaskId() { return sameAsTaskId; }
+        public String getSink() { return sink; }
+        public String getLocation() { return location; }
+        public Map<String, String> getAttachments() { return attachments; }
+    }
+}
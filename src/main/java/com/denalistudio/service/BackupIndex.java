@@ -0,0 +1,173 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Fingerprints of every backup that has been fully processed, persisted as an append-only log
+public class BackupIndex {
+    private static final int HASH_PREFIX_BYTES = 64 * 1024;
+
+    private final Path indexFile;
+    private final Gson gson = new Gson();
+    private final Map<String, Fingerprint> byPath = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Fingerprint>> byDirectory = new ConcurrentHashMap<>();
+    private final boolean existed;
+    private FileChannel channel;
+
+    public BackupIndex(Path stateDir) throws IOException {
+        Files.createDirectories(stateDir);
+        this.indexFile = stateDir.resolve("processed-backups.log");
+        this.existed = Files.exists(indexFile);
+        if (existed) {
+            load();
+        } else {
+            Files.createFile(indexFile);
+        }
+    }
+
+    // False on the very first start, when nothing has been indexed yet
+    public boolean existed() {
+        return existed;
+    }
+
+    public int size() {
+        return byPath.size();
+    }
+
+    public static Fingerprint fingerprint(Path file) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.path = file.toString();
+        fingerprint.size = Files.size(file);
+        fingerprint.modified = Files.getLastModifiedTime(file).toMillis();
+        fingerprint.hashPrefix = hashPrefix(file);
+        return fingerprint;
+    }
+
+    // Cheap check on path, size and mtime. A renamed file keeps its size and mtime, so it is matched by those
+    // and the hash of its first 64 KB among the fingerprints of the same directory, but only when the old
+    // path is gone: a new backup with the same content is not a rename and goes through content dedup
+    public boolean isProcessed(Path file, long size, long modified) throws IOException {
+        Fingerprint known = byPath.get(file.toString());
+        if (known != null && known.size == size && known.modified == modified) {
+            return true;
+        }
+
+        String prefix = null;
+        for (Fingerprint candidate : byDirectory.getOrDefault(String.valueOf(file.getParent()), Map.of()).values()) {
+            if (candidate.size != size || candidate.modified != modified || candidate.path.equals(file.toString())
+                    || Files.exists(Paths.get(candidate.path))) {
+                continue;
+            }
+            if (prefix == null) {
+                prefix = hashPrefix(file);
+            }
+            if (prefix.equals(candidate.hashPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void record(Fingerprint fingerprint) {
+        put(fingerprint);
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer line = ByteBuffer.wrap((gson.toJson(fingerprint) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error writing to the processed backup index: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void load() throws IOException {
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Fingerprint fingerprint = gson.fromJson(line, Fingerprint.class);
+                    if (fingerprint != null) {
+                        put(fingerprint);
+                        lines++;
+                    }
+                } catch (JsonSyntaxException e) {
+                    System.err.println("Skipping unreadable index entry: " + line);
+                }
+            }
+        }
+
+        // Re-processed paths append a new line each time, so drop the superseded ones now and then
+        if (lines > 2 * byPath.size() + 100) {
+            List<String> compacted = new ArrayList<>();
+            for (Fingerprint fingerprint : byPath.values()) {
+                compacted.add(gson.toJson(fingerprint));
+            }
+            Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            Files.write(tmp, compacted, StandardCharsets.UTF_8);
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void put(Fingerprint fingerprint) {
+        byPath.put(fingerprint.path, fingerprint);
+        byDirectory.computeIfAbsent(String.valueOf(Paths.get(fingerprint.path).getParent()), dir -> new ConcurrentHashMap<>())
+                .put(fingerprint.path, fingerprint);
+    }
+
+    private static String hashPrefix(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            digest.update(in.readNBytes(HASH_PREFIX_BYTES));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static class Fingerprint {
+        private String path;
+        private long size;
+        private long modified;
+        private String hashPrefix;
+
+        public String getPath() { return path; }
+        public long getSize() { return size; }
+        public long getModified() { return modified; }
+        public String getHashPrefix() { return hashPrefix; }
+    }
+}
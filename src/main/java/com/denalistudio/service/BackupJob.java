@@ -0,0 +1,136 @@
+package com.denalistudio.service;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BackupJob {
+    public enum State {
+        DETECTED,
+        STABLE,
+        SPLIT,
+        PART_UPLOADED,
+        MANIFEST_UPLOADED,
+        COMPLETED,
+        ABANDONED
+    }
+
+    private final String id;
+    private final Path filePath;
+    private final String domainTaskId;
+    private final String domain;
+    private final Set<Integer> uploadedParts = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, PartManifest.Part> partChecksums = new ConcurrentHashMap<>();
+    private final Map<String, String> attachmentIds = new ConcurrentHashMap<>();
+    private volatile String taskId;
+    private volatile long size;
+    private volatile long partSize;
+    private volatile State state = State.DETECTED;
+    private volatile String contentHash;
+    private volatile long detectedAt = System.currentTimeMillis();
+    private volatile PartManifest plannedManifest;
+    private volatile String uploadId;
+    private final AtomicInteger failedRuns = new AtomicInteger();
+
+    public BackupJob(String id, Path filePath, String domainTaskId, String domain) {
+        this.id = id;
+        this.filePath = filePath;
+        this.domainTaskId = domainTaskId;
+        this.domain = domain;
+    }
+
+    // Files that fit into one part are attached as a whole under their own name
+    public int partCount() {
+        if (partSize <= 0 || size <= partSize) {
+            return 1;
+        }
+        return (int) ((size + partSize - 1) / partSize);
+    }
+
+    public boolean isSplit() {
+        return partCount() > 1;
+    }
+
+    public String partName(int partNumber) {
+        String fileName = filePath.getFileName().toString();
+        return isSplit() ? fileName + ".part" + partNumber : fileName;
+    }
+
+    public long partOffset(int partNumber) {
+        return (partNumber - 1) * partSize;
+    }
+
+    public long partLength(int partNumber) {
+        return isSplit() ? Math.min(partSize, size - partOffset(partNumber)) : size;
+    }
+
+    public void partUploaded(PartManifest.Part part) {
+        partChecksums.put(part.getNumber(), part);
+        uploadedParts.add(part.getNumber());
+    }
+
+    public PartManifest manifest() {
+        PartManifest manifest = new PartManifest(filePath.getFileName().toString(), size, partSize, partCount());
+        manifest.setSha256(contentHash);
+        partChecksums.values().stream()
+                .sorted(Comparator.comparingInt(PartManifest.Part::getNumber))
+                .forEach(manifest.getParts()::add);
+        return manifest;
+    }
+
+    // Id the sink gave every part, pack and manifest stored so far (ClickUp attachment id, S3 ETag), by file name
+    public void attachmentUploaded(String name, String attachmentId) {
+        if (attachmentId != null) {
+            attachmentIds.put(name, attachmentId);
+        }
+    }
+
+    public Map<String, String> getAttachmentIds() {
+        return attachmentIds;
+    }
+
+    // Checksums computed up front by the hashing pass, if it ran for this job
+    public PartManifest.Part plannedPart(int partNumber) {
+        PartManifest planned = plannedManifest;
+        if (planned == null || partNumber > planned.getParts().size()) {
+            return null;
+        }
+        return planned.getParts().get(partNumber - 1);
+    }
+
+    public String manifestName() {
+        return filePath.getFileName().toString() + PartManifest.SUFFIX;
+    }
+
+    // Runs that ended in an error since the service started; not journaled, a restart starts over
+    public int runFailed() {
+        return failedRuns.incrementAndGet();
+    }
+
+    public String getId() { return id; }
+    public Path getFilePath() { return filePath; }
+    public String getDomainTaskId() { return domainTaskId; }
+    public String getDomain() { return domain; }
+    public Set<Integer> getUploadedParts() { return uploadedParts; }
+    public Map<Integer, PartManifest.Part> getPartChecksums() { return partChecksums; }
+    public String getTaskId() { return taskId; }
+    public void setTaskId(String taskId) { this.taskId = taskId; }
+    public long getSize() { return size; }
+    public void setSize(long size) { this.size = size; }
+    public long getPartSize() { return partSize; }
+    public void setPartSize(long partSize) { this.partSize = partSize; }
+    public State getState() { return state; }
+    public void setState(State state) { this.state = state; }
+    public long getDetectedAt() { return detectedAt; }
+    public void setDetectedAt(long detectedAt) { this.detectedAt = detectedAt; }
+    public String getContentHash() { return contentHash; }
+    public void setContentHash(String contentHash) { this.contentHash = contentHash; }
+    public PartManifest getPlannedManifest() { return plannedManifest; }
+    public void setPlannedManifest(PartManifest plannedManifest) { this.plannedManifest = plannedManifest; }
+    // Multipart upload the parts of a split backup belong to, for sinks that have one
+    public String getUploadId() { return uploadId; }
+    public void setUploadId(String uploadId) { this.uploadId = uploadId; }
+}
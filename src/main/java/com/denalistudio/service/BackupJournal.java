@@ -0,0 +1,200 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only log of backup job transitions, replayed on startup so interrupted jobs can resume
+public class BackupJournal {
+    private final Path journalFile;
+    private final Gson gson = new Gson();
+    private FileChannel channel;
+
+    public BackupJournal(Path stateDir) throws IOException {
+        Files.createDirectories(stateDir);
+        this.journalFile = stateDir.resolve("backup-journal.log");
+    }
+
+    // Replays the journal, compacts it down to the unfinished jobs and returns them
+    public synchronized Map<String, BackupJob> load() throws IOException {
+        Map<String, BackupJob> jobs = new LinkedHashMap<>();
+
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        apply(jobs, gson.fromJson(line, Entry.class));
+                    } catch (JsonSyntaxException e) {
+                        // A torn last line from a crash mid-append is expected, skip it
+                        System.err.println("Skipping unreadable journal entry: " + line);
+                    }
+                }
+            }
+        }
+
+        compact(jobs.values());
+        return jobs;
+    }
+
+    public void record(BackupJob job, BackupJob.State state) {
+        record(job, state, null);
+    }
+
+    public synchronized void record(BackupJob job, BackupJob.State state, PartManifest.Part part) {
+        try {
+            append(snapshot(job, state, part));
+        } catch (IOException e) {
+            System.err.println("Error writing to the backup journal: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void apply(Map<String, BackupJob> jobs, Entry entry) {
+        BackupJob job = jobs.get(entry.jobId);
+        if (job == null) {
+            if (entry.state != BackupJob.State.DETECTED) {
+                return;
+            }
+            job = new BackupJob(entry.jobId, Paths.get(entry.path), entry.domainTaskId, entry.domain);
+            job.setDetectedAt(entry.time);
+            jobs.put(entry.jobId, job);
+        }
+
+        if (entry.taskId != null) {
+            job.setTaskId(entry.taskId);
+        }
+        if (entry.size > 0) {
+            job.setSize(entry.size);
+        }
+        if (entry.partSize > 0) {
+            job.setPartSize(entry.partSize);
+        }
+        if (entry.contentHash != null) {
+            job.setContentHash(entry.contentHash);
+        }
+        if (entry.uploadId != null) {
+            job.setUploadId(entry.uploadId);
+        }
+        if (entry.state == BackupJob.State.PART_UPLOADED && entry.part != null) {
+            job.partUploaded(new PartManifest.Part(entry.part, job.partName(entry.part), job.partOffset(entry.part),
+                    job.partLength(entry.part), entry.crc32c, entry.sha256));
+            if (entry.attachmentId != null) {
+                job.attachmentUploaded(job.partName(entry.part), entry.attachmentId);
+            }
+        }
+        if (entry.attachments != null) {
+            entry.attachments.forEach(job::attachmentUploaded);
+        }
+        job.setState(entry.state);
+
+        if (entry.state == BackupJob.State.COMPLETED || entry.state == BackupJob.State.ABANDONED) {
+            jobs.remove(entry.jobId);
+        }
+    }
+
+    private void compact(Iterable<BackupJob> jobs) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (BackupJob job : jobs) {
+            lines.add(gson.toJson(snapshot(job, BackupJob.State.DETECTED, null)));
+            if (job.getState() != BackupJob.State.DETECTED) {
+                lines.add(gson.toJson(snapshot(job, BackupJob.State.STABLE, null)));
+            }
+            for (PartManifest.Part part : job.getPartChecksums().values()) {
+                lines.add(gson.toJson(snapshot(job, BackupJob.State.PART_UPLOADED, part)));
+            }
+            if (job.getState() == BackupJob.State.MANIFEST_UPLOADED) {
+                lines.add(gson.toJson(snapshot(job, BackupJob.State.MANIFEST_UPLOADED, null)));
+            }
+        }
+
+        Path compacted = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        Files.write(compacted, lines, StandardCharsets.UTF_8);
+        Files.move(compacted, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Entry snapshot(BackupJob job, BackupJob.State state, PartManifest.Part part) {
+        Entry entry = new Entry();
+        entry.jobId = job.getId();
+        entry.state = state;
+        // Compaction rewrites DETECTED entries, which must keep the original detection time
+        entry.time = state == BackupJob.State.DETECTED ? job.getDetectedAt() : System.currentTimeMillis();
+        entry.path = job.getFilePath().toString();
+        entry.domainTaskId = job.getDomainTaskId();
+        entry.domain = job.getDomain();
+        entry.taskId = job.getTaskId();
+        entry.size = job.getSize();
+        entry.partSize = job.getPartSize();
+        entry.contentHash = job.getContentHash();
+        entry.uploadId = job.getUploadId();
+        if (part != null) {
+            entry.part = part.getNumber();
+            entry.crc32c = part.getCrc32c();
+            entry.sha256 = part.getSha256();
+            entry.attachmentId = job.getAttachmentIds().get(part.getName());
+        }
+        if (state == BackupJob.State.MANIFEST_UPLOADED) {
+            entry.attachments = new LinkedHashMap<>(job.getAttachmentIds());
+        }
+        return entry;
+    }
+
+    private void append(Entry entry) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer line = ByteBuffer.wrap((gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        channel.force(false);
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Entry {
+        private String jobId;
+        private BackupJob.State state;
+        private long time;
+        private String path;
+        private String domainTaskId;
+        private String domain;
+        private String taskId;
+        private long size;
+        private long partSize;
+        private String contentHash;
+        private String uploadId;
+        private Integer part;
+        private String crc32c;
+        private String sha256;
+        private String attachmentId;
+        private Map<String, String> attachments;
+    }
+}
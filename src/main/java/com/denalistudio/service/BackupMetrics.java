@@ -0,0 +1,108 @@
+package com.denalistudio.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+// Meters of the backup pipeline, tagged by domain where they describe a single backup. Exposed through
+// actuator, e.g. /actuator/prometheus
+public class BackupMetrics {
+    private final MeterRegistry registry;
+
+    public BackupMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void gauge(String name, String description, Supplier<Number> value) {
+        Gauge.builder(name, value).description(description).register(registry);
+    }
+
+    public void registered(int directories, Duration duration) {
+        Timer.builder("backup.watch.registration")
+                .description("Time spent registering new directories with the watch service")
+                .register(registry)
+                .record(duration);
+        Counter.builder("backup.watch.registered")
+                .description("Directories registered with the watch service")
+                .register(registry)
+                .increment(directories);
+    }
+
+    // From the first event (or journal entry) to the end of the quiet period
+    public void stabilized(String domain, Duration latency) {
+        Timer.builder("backup.stabilization.latency")
+                .description("Time from detecting a backup until its writes stopped")
+                .tag("domain", domain)
+                .register(registry)
+                .record(latency);
+    }
+
+    // Sequential passes over a whole backup: hashing, splitting into parts, chunking
+    public void pass(String domain, String pass, long bytes, Duration duration) {
+        Timer.builder("backup.pass.duration")
+                .description("Duration of a full read of a backup")
+                .tags("domain", domain, "pass", pass)
+                .register(registry)
+                .record(duration);
+        Counter.builder("backup.pass.bytes")
+                .description("Bytes read by full passes over backups")
+                .baseUnit("bytes")
+                .tags("domain", domain, "pass", pass)
+                .register(registry)
+                .increment(bytes);
+    }
+
+    // One attachment (part, pack or manifest) including its retries
+    public void uploaded(String domain, long bytes, Duration duration, boolean success) {
+        String outcome = success ? "success" : "failure";
+        Timer.builder("backup.upload.duration")
+                .description("Duration of attaching one part, including retries")
+                .tags("domain", domain, "outcome", outcome)
+                .register(registry)
+                .record(duration);
+        DistributionSummary.builder("backup.upload.size")
+                .description("Size of attached parts")
+                .baseUnit("bytes")
+                .tags("domain", domain, "outcome", outcome)
+                .register(registry)
+                .record(bytes);
+        if (success) {
+            Counter.builder("backup.upload.bytes")
+                    .description("Bytes stored in the backup sink")
+                    .baseUnit("bytes")
+                    .tag("domain", domain)
+                    .register(registry)
+                    .increment(bytes);
+        }
+    }
+
+    public void retried(String domain) {
+        Counter.builder("backup.upload.retries")
+                .description("Attachment attempts that failed and were retried")
+                .tag("domain", domain)
+                .register(registry)
+                .increment();
+    }
+
+    public void failed(String domain, String stage) {
+        Counter.builder("backup.failures")
+                .description("Backup processing failures by stage")
+                .tags("domain", domain, "stage", stage)
+                .register(registry)
+                .increment();
+    }
+
+    // outcome is "uploaded" or "unchanged"; latency runs from detection to completion
+    public void completed(String domain, String outcome, Duration latency) {
+        Timer.builder("backup.job.duration")
+                .description("Time from detecting a backup until it was completed")
+                .tags("domain", domain, "outcome", outcome)
+                .register(registry)
+                .record(latency);
+    }
+}
@@ -0,0 +1,145 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Finds backups that never produced a watch event (e.g. uploaded while the server was down) by comparing
+// the backup tree against the index of processed fingerprints
+public class BackupReconciler {
+    private final Path root;
+    private final BackupIndex index;
+    private final Predicate<Path> isBackupFile;
+    private final Predicate<Path> inProgress;
+    private final Consumer<Path> enqueue;
+    private final Map<Path, DirectoryState> directories = new ConcurrentHashMap<>();
+    private boolean firstPass = true;
+
+    public BackupReconciler(Path root, BackupIndex index, Predicate<Path> isBackupFile, Predicate<Path> inProgress, Consumer<Path> enqueue) {
+        this.root = root;
+        this.index = index;
+        this.isBackupFile = isBackupFile;
+        this.inProgress = inProgress;
+        this.enqueue = enqueue;
+    }
+
+    // On the very first run there is no index yet, so everything already on disk is taken as processed
+    // instead of uploading the whole backup tree again
+    public synchronized void reconcile() {
+        long start = System.currentTimeMillis();
+        boolean seeding = firstPass && !index.existed();
+        firstPass = false;
+        Stats stats = new Stats();
+
+        try {
+            scan(root, seeding, stats);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Reconciliation of " + root + " finished in " + (System.currentTimeMillis() - start) + " ms: "
+                + stats.listed + " directories listed, " + stats.skipped + " unchanged, "
+                + (seeding ? stats.found + " existing backups indexed" : stats.found + " missed backups enqueued"));
+    }
+
+    private void scan(Path dir, boolean seeding, Stats stats) {
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            // The directory is gone, forget it and everything below it
+            directories.keySet().removeIf(path -> path.startsWith(dir));
+            return;
+        }
+
+        DirectoryState state = directories.get(dir);
+        List<Path> subdirectories;
+
+        // A directory's mtime only changes when entries are added or removed, so an unchanged directory
+        // without pending backups does not need to be listed again
+        if (state != null && state.modified == modified && !state.hasPending) {
+            subdirectories = state.subdirectories;
+            stats.skipped++;
+        } else {
+            subdirectories = new ArrayList<>();
+            boolean hasPending = false;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(entry);
+                    } else if (attributes.isRegularFile() && isBackupFile.test(entry)) {
+                        hasPending |= reconcileFile(entry, attributes, seeding, stats);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error listing " + dir + ": " + e.getMessage());
+                return;
+            }
+
+            directories.put(dir, new DirectoryState(modified, subdirectories, hasPending));
+            stats.listed++;
+        }
+
+        for (Path subdirectory : subdirectories) {
+            scan(subdirectory, seeding, stats);
+        }
+    }
+
+    // Returns true while the file still needs attention, so its directory is listed again next time
+    private boolean reconcileFile(Path file, BasicFileAttributes attributes, boolean seeding, Stats stats) {
+        if (inProgress.test(file)) {
+            return true;
+        }
+
+        try {
+            if (index.isProcessed(file, attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                return false;
+            }
+
+            stats.found++;
+            if (seeding) {
+                index.record(BackupIndex.fingerprint(file));
+                return false;
+            }
+
+            System.out.println("Reconciliation found an unprocessed backup: " + file);
+            enqueue.accept(file);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error fingerprinting " + file + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static class DirectoryState {
+        private final long modified;
+        private final List<Path> subdirectories;
+        private final boolean hasPending;
+
+        private DirectoryState(long modified, List<Path> subdirectories, boolean hasPending) {
+            this.modified = modified;
+            this.subdirectories = subdirectories;
+            this.hasPending = hasPending;
+        }
+    }
+
+    private static class Stats {
+        private int listed;
+        private int skipped;
+        private int found;
+    }
+}
@@ -0,0 +1,188 @@
+package com.denalistudio.service;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+// Decides which stable backups run next. A few jobs run at once and one slot is kept free of large
+// backups; the next job is picked by priority class, then by domain (domains with fewer running jobs
+// first), then by highest response ratio, which is shortest-job-first with aging
+public class BackupScheduler {
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final ExecutorService executor;
+    private final Consumer<BackupJob> runner;
+    private final int maxRunning;
+    private final long largeJobBytes;
+    private final long estimatedBytesPerSecond;
+    private final List<Pending> pending = new ArrayList<>();
+    private final Map<String, BackupJob> running = new LinkedHashMap<>();
+    private final Map<String, Integer> runningByDomain = new HashMap<>();
+    private int runningLarge;
+    private long sequence;
+
+    public BackupScheduler(ExecutorService executor, Consumer<BackupJob> runner, int maxRunning, long largeJobBytes, long estimatedBytesPerSecond) {
+        this.executor = executor;
+        this.runner = runner;
+        this.maxRunning = maxRunning;
+        this.largeJobBytes = largeJobBytes;
+        this.estimatedBytesPerSecond = Math.max(1, estimatedBytesPerSecond);
+    }
+
+    public void submit(BackupJob job) {
+        List<Runnable> started;
+        synchronized (this) {
+            pending.add(new Pending(job, sequence++));
+            started = dispatch();
+        }
+        started.forEach(executor::submit);
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int runningCount() {
+        return running.size();
+    }
+
+    // Returns false when the job is not waiting (already running or unknown)
+    public synchronized boolean setPriority(String jobId, Priority priority) {
+        for (Pending entry : pending) {
+            if (entry.job.getId().equals(jobId)) {
+                entry.priority = priority;
+                System.out.println("Backup job " + jobId + " (" + entry.job.getDomain() + ") set to " + priority + " priority");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Pending jobs in the order they would start if slots were free now
+    public synchronized Map<String, Object> describe() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> queue = new ArrayList<>();
+        for (Pending entry : ordered(now)) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("jobId", entry.job.getId());
+            item.put("domain", entry.job.getDomain());
+            item.put("file", entry.job.getFilePath().toString());
+            item.put("size", entry.job.getSize());
+            item.put("priority", entry.priority);
+            item.put("waitingSeconds", (now - entry.enqueuedAt) / 1000);
+            item.put("responseRatio", Math.round(responseRatio(entry, now) * 100) / 100.0);
+            item.put("large", isLarge(entry.job));
+            queue.add(item);
+        }
+
+        List<Map<String, Object>> active = new ArrayList<>();
+        for (BackupJob job : running.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("jobId", job.getId());
+            item.put("domain", job.getDomain());
+            item.put("size", job.getSize());
+            item.put("uploadedParts", job.getUploadedParts().size());
+            item.put("partCount", job.partCount());
+            active.add(item);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("maxRunning", maxRunning);
+        result.put("largeJobBytes", largeJobBytes);
+        result.put("running", active);
+        result.put("pending", queue);
+        return result;
+    }
+
+    // Picks the jobs to start under the lock; the callers hand them to the executor after releasing it
+    private List<Runnable> dispatch() {
+        List<Runnable> started = new ArrayList<>();
+        while (running.size() < maxRunning) {
+            Pending next = next(System.currentTimeMillis());
+            if (next == null) {
+                break;
+            }
+            pending.remove(next);
+            started.add(start(next.job));
+        }
+        return started;
+    }
+
+    private Runnable start(BackupJob job) {
+        running.put(job.getId(), job);
+        runningByDomain.merge(job.getDomain(), 1, Integer::sum);
+        boolean large = isLarge(job);
+        if (large) {
+            runningLarge++;
+        }
+
+        return () -> {
+            try {
+                runner.accept(job);
+            } finally {
+                finished(job, large);
+            }
+        };
+    }
+
+    private void finished(BackupJob job, boolean large) {
+        List<Runnable> started;
+        synchronized (this) {
+            running.remove(job.getId());
+            runningByDomain.computeIfPresent(job.getDomain(), (domain, count) -> count > 1 ? count - 1 : null);
+            if (large) {
+                runningLarge--;
+            }
+            started = dispatch();
+        }
+        started.forEach(executor::submit);
+    }
+
+    private Pending next(long now) {
+        for (Pending entry : ordered(now)) {
+            // Large backups may not take the last free slot, so a small one can always start
+            if (isLarge(entry.job) && maxRunning > 1 && runningLarge >= maxRunning - 1) {
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    private List<Pending> ordered(long now) {
+        List<Pending> ordered = new ArrayList<>(pending);
+        ordered.sort(Comparator.<Pending, Priority>comparing(entry -> entry.priority)
+                .thenComparingInt(entry -> runningByDomain.getOrDefault(entry.job.getDomain(), 0))
+                .thenComparing(Comparator.<Pending>comparingDouble(entry -> responseRatio(entry, now)).reversed())
+                .thenComparingLong(entry -> entry.sequence));
+        return ordered;
+    }
+
+    // (waiting + expected service) / expected service: small jobs start with a head start, waiting ones
+    // catch up, so a large backup is never postponed forever
+    private double responseRatio(Pending entry, long now) {
+        double service = Math.max(1.0, (double) entry.job.getSize() / estimatedBytesPerSecond);
+        double waited = (now - entry.enqueuedAt) / 1000.0;
+        return (waited + service) / service;
+    }
+
+    private boolean isLarge(BackupJob job) {
+        return job.getSize() >= largeJobBytes;
+    }
+
+    private static class Pending {
+        private final BackupJob job;
+        private final long sequence;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private Priority priority = Priority.NORMAL;
+
+        private Pending(BackupJob job, long sequence) {
+            this.job = job;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.denalistudio.service;
+
+import okhttp3.RequestBody;
+
+import java.io.IOException;
+
+// Where uploaded backups end up. Parts of one backup are stored concurrently, and every call may be
+// retried, so implementations must accept the same part or object twice
+public interface BackupSink {
+    String getName();
+
+    // Called before the first part of a backup is stored, again when a job resumes
+    void begin(BackupJob job) throws IOException;
+
+    // Stores one part of the backup (the whole file if it isn't split), returns the id the sink gave it
+    String putPart(BackupJob job, int partNumber, String name, RequestBody body) throws IOException;
+
+    // Stores a file that belongs to the backup without being one of its parts: manifests, chunk packs, recipes
+    String putObject(BackupJob job, String name, RequestBody body) throws IOException;
+
+    // Called once every part is stored
+    void complete(BackupJob job) throws IOException;
+
+    // Where the stored backup can be found
+    String location(BackupJob job);
+
+    // Whether the backup task only gets a link, instead of holding the backup itself
+    boolean isExternal();
+}
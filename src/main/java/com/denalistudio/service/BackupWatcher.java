@@ -1,17 +1,27 @@
 package com.denalistudio.service;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import io.github.cdimascio.dotenv.Dotenv;
+import io.micrometer.core.instrument.MeterRegistry;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import okhttp3.*;
 
 public class BackupWatcher {
+    // Upper bound for the delay before a failed job runs again
+    private static final long JOB_RETRY_MAX_DELAY_MILLIS = 60 * 60 * 1000L;
+
     OkHttpClient client = new OkHttpClient.Builder()
             .connectTimeout(90, TimeUnit.SECONDS)
             .writeTimeout(90, TimeUnit.SECONDS)
@@ -19,14 +29,49 @@ public class BackupWatcher {
             .build();
 
     private final Path backupDir;
-    private final ExecutorService executorService;
+    private final ExecutorService jobExecutor;
     private final ScheduledExecutorService scheduler;
+    private final UploadScheduler uploadScheduler;
+    private final BackupScheduler backupScheduler;
+    private final PartSizer partSizer;
+    private final BandwidthLimiter bandwidthLimiter;
+    private Thread watchThread;
     private final String tempDir;
     private final String clickUpApiKey;
     private final String backupsList;
     private final String domainCustomField;
+    private final BackupSink sink;
+    private final FileStabilizer stabilizer;
+    private final String uploadMode;
+    private final int pipelineWindow;
+    private final int splitThreads;
+    private final boolean splitPreallocate;
+    private final ContentDefinedChunker chunker;
+    private final ChunkIndex chunkIndex;
+    private final BackupJournal journal;
+    private final int uploadMaxAttempts;
+    private final long uploadRetryDelayMillis;
+    private final BackupIndex processedIndex;
+    private final ContentHashIndex contentHashes;
+    private final BackupCatalog catalog;
+    private final boolean dedupEnabled;
+    private final BackupReconciler reconciler;
+    private final long reconcileIntervalMinutes;
+    private final Set<Path> activeBackups = ConcurrentHashMap.newKeySet();
+    private final Set<Path> ignoredBackups = ConcurrentHashMap.newKeySet();
+    private final Map<Path, String> rejectedBackups = new ConcurrentHashMap<>();
+    private final ZipIntegrityChecker zipChecker;
+    private final boolean verifyZip;
+    private final Path quarantineDir;
+    private final RetentionManager retention;
+    private final long retentionIntervalMinutes;
+    private final Set<Path> activeSplitDirs = ConcurrentHashMap.newKeySet();
+    private final DirectorySnapshot snapshot = new DirectorySnapshot();
+    private final BackupMetrics metrics;
+    private final int maxWatches;
+    private volatile WatchedDirectoryRegistry watchedDirectories;
 
-    public BackupWatcher(String backupDir) {
+    public BackupWatcher(String backupDir, MeterRegistry meterRegistry) {
         Dotenv dotenv;
         String envPath = System.getenv("DS_SERVER_ENV_PATH");
 
@@ -36,20 +81,156 @@ public class BackupWatcher {
 
         dotenv = Dotenv.configure().directory(envPath).load();
         this.backupDir = Paths.get(backupDir);
-        this.executorService = Executors.newFixedThreadPool(4);
+        // Jobs block on ClickUp and disk, so each gets its own virtual thread; uploads share one global limit
+        this.jobExecutor = VirtualThreads.newExecutor("backup-job");
         this.scheduler = Executors.newScheduledThreadPool(1);
+        // The number of parallel uploads starts here and then follows ClickUp's latency and errors
+        long estimatedBytesPerSecond = Long.parseLong(dotenv.get("BACKUP_ESTIMATED_MB_PER_SECOND", "10")) * 1024 * 1024;
+        this.uploadScheduler = new UploadScheduler(Integer.parseInt(dotenv.get("BACKUP_UPLOAD_CONCURRENCY", "3")),
+                Integer.parseInt(dotenv.get("BACKUP_UPLOAD_MIN_CONCURRENCY", "1")),
+                Integer.parseInt(dotenv.get("BACKUP_UPLOAD_MAX_CONCURRENCY", "12")), estimatedBytesPerSecond);
+
+        // Part size follows file size, upload concurrency and the measured per-connection rate, capped by the
+        // ClickUp attachment limit. Backups up to BACKUP_SINGLE_ATTACHMENT_MB (by default that limit) are not split
+        String maxPartMb = dotenv.get("BACKUP_MAX_PART_MB", "900");
+        this.partSizer = new PartSizer(Long.parseLong(dotenv.get("BACKUP_MIN_PART_MB", "64")) * 1024 * 1024,
+                Long.parseLong(maxPartMb) * 1024 * 1024,
+                Long.parseLong(dotenv.get("BACKUP_TARGET_PART_SECONDS", "300")),
+                Long.parseLong(dotenv.get("BACKUP_SINGLE_ATTACHMENT_MB", maxPartMb)) * 1024 * 1024, uploadScheduler);
+
+        // Only a few stable backups are processed at once, picked by size, waiting time and domain
+        this.backupScheduler = new BackupScheduler(jobExecutor, this::runJob,
+                Math.max(1, Integer.parseInt(dotenv.get("BACKUP_MAX_RUNNING_JOBS", "3"))),
+                Long.parseLong(dotenv.get("BACKUP_LARGE_JOB_MB", "2048")) * 1024 * 1024, estimatedBytesPerSecond);
+
+        // Global egress cap for backup uploads, 0 means unlimited; adjustable at runtime through actuator
+        this.bandwidthLimiter = new BandwidthLimiter(Long.parseLong(dotenv.get("BACKUP_UPLOAD_BYTES_PER_SECOND", "0")));
         this.tempDir = dotenv.get("TEMP_DIR");
         this.clickUpApiKey = dotenv.get("CLICKUP_API_KEY");
         this.backupsList = dotenv.get("BACKUPS_LIST_ID");
         this.domainCustomField = dotenv.get("BACKUPS_DOMAIN_CUSTOM_FIELD_ID");
+
+        // Backups are attached to their ClickUp task, or stored in an S3-compatible bucket with only a link
+        // on the task
+        if ("s3".equals(dotenv.get("BACKUP_SINK", "clickup"))) {
+            OkHttpClient s3Client = client.newBuilder()
+                    .connectionPool(new ConnectionPool(Integer.parseInt(dotenv.get("BACKUP_UPLOAD_MAX_CONCURRENCY", "12")), 5, TimeUnit.MINUTES))
+                    .build();
+            this.sink = new S3BackupSink(s3Client, dotenv.get("BACKUP_S3_ENDPOINT"), dotenv.get("BACKUP_S3_REGION", "us-east-1"),
+                    dotenv.get("BACKUP_S3_BUCKET"), dotenv.get("BACKUP_S3_PREFIX", "backups"),
+                    dotenv.get("BACKUP_S3_ACCESS_KEY"), dotenv.get("BACKUP_S3_SECRET_KEY"));
+        } else {
+            this.sink = new ClickUpBackupSink(client, clickUpApiKey);
+        }
+
+        // Quiet period after the last write before a backup is considered complete, optionally per root
+        Duration quietPeriod = Duration.ofSeconds(Long.parseLong(dotenv.get("BACKUP_QUIET_PERIOD_SECONDS", "20")));
+        this.stabilizer = new FileStabilizer(scheduler, quietPeriod, FileStabilizer.parseQuietPeriods(dotenv.get("BACKUP_QUIET_PERIODS")));
+
+        // "ranged" uploads byte ranges of the original file, "pipelined" overlaps splitting and uploading,
+        // "split" writes every part before the first upload, "chunked" only uploads content-defined chunks
+        // that no earlier backup contained
+        String mode = dotenv.get("BACKUP_UPLOAD_MODE", "ranged");
+        // Chunk recipes point at packs attached to ClickUp tasks
+        if ("chunked".equals(mode) && sink.isExternal()) {
+            System.err.println("Chunked uploads need the ClickUp sink, uploading byte ranges to " + sink.getName() + " instead.");
+            mode = "ranged";
+        }
+        this.uploadMode = mode;
+        this.pipelineWindow = Math.max(1, Integer.parseInt(dotenv.get("BACKUP_PIPELINE_WINDOW", "3")));
+        // Parts are copied by offset with transferTo, this many at once
+        this.splitThreads = Math.max(1, Integer.parseInt(dotenv.get("BACKUP_SPLIT_THREADS", String.valueOf(ZipFileSplitter.DEFAULT_THREADS))));
+        this.splitPreallocate = Boolean.parseBoolean(dotenv.get("BACKUP_SPLIT_PREALLOCATE", "false"));
+        this.chunker = new ContentDefinedChunker(Integer.parseInt(dotenv.get("BACKUP_CHUNK_SIZE_KB", "1024")) * 1024);
+
+        // Per-part retries with exponential backoff before a job is left for the next resume
+        this.uploadMaxAttempts = Math.max(1, Integer.parseInt(dotenv.get("BACKUP_UPLOAD_MAX_ATTEMPTS", "5")));
+        this.uploadRetryDelayMillis = Long.parseLong(dotenv.get("BACKUP_UPLOAD_RETRY_DELAY_SECONDS", "5")) * 1000;
+
+        // Journal of job transitions and index of processed backups, kept outside the watched tree so they
+        // never trigger events
+        Path stateDir = Paths.get(dotenv.get("BACKUP_STATE_DIR", tempDir + "/backup-state"));
+        try {
+            this.journal = new BackupJournal(stateDir);
+            this.processedIndex = new BackupIndex(stateDir);
+            this.chunkIndex = new ChunkIndex(stateDir);
+            this.catalog = new BackupCatalog(stateDir);
+            this.contentHashes = new ContentHashIndex(stateDir, Math.max(1, Integer.parseInt(dotenv.get("BACKUP_DEDUP_HISTORY", "5"))));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create the backup state directory.", e);
+        }
+
+        // Backups whose content matches a recent upload of the same domain are recorded as unchanged
+        this.dedupEnabled = Boolean.parseBoolean(dotenv.get("BACKUP_DEDUP", "true"));
+
+        this.metrics = new BackupMetrics(meterRegistry);
+        metrics.gauge("backup.jobs.active", "Backups detected but not yet completed", activeBackups::size);
+        metrics.gauge("backup.stabilizer.pending", "Backups waiting for their writes to stop", stabilizer::pendingCount);
+        metrics.gauge("backup.uploads.limit", "Current adaptive limit on concurrent uploads", uploadScheduler::getConcurrency);
+        metrics.gauge("backup.uploads.active", "Attachments currently being uploaded", uploadScheduler::activeUploads);
+        metrics.gauge("backup.uploads.waiting", "Attachments queued for an upload slot", uploadScheduler::waitingUploads);
+        metrics.gauge("backup.upload.connection.rate", "Average bytes per second of one upload connection", partSizer::getBytesPerSecond);
+        metrics.gauge("backup.jobs.pending", "Stable backups waiting for the scheduler", backupScheduler::pendingCount);
+        metrics.gauge("backup.jobs.running", "Backups currently being uploaded", backupScheduler::runningCount);
+        metrics.gauge("backup.watch.directories", "Directories registered with the watch service",
+                () -> watchedDirectories == null ? 0 : watchedDirectories.size());
+
+        // inotify watches are shared by every process of the user, so by default only 80% of them are used
+        int inotifyLimit = WatchedDirectoryRegistry.inotifyLimit();
+        this.maxWatches = Integer.parseInt(dotenv.get("BACKUP_MAX_WATCHES",
+                String.valueOf(inotifyLimit > 0 ? inotifyLimit * 4 / 5 : Integer.MAX_VALUE)));
+
+        // Archives are checked for truncation before anything is uploaded; a full CRC pass is optional.
+        // Broken backups are left in place and skipped until they change, or moved to the quarantine dir
+        this.verifyZip = Boolean.parseBoolean(dotenv.get("BACKUP_VERIFY_ZIP", "true"));
+        this.zipChecker = new ZipIntegrityChecker(Boolean.parseBoolean(dotenv.get("BACKUP_VERIFY_CRC", "false"))
+                ? Math.max(1, Integer.parseInt(dotenv.get("BACKUP_VERIFY_THREADS", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))))
+                : 0);
+        String quarantine = dotenv.get("BACKUP_QUARANTINE_DIR");
+        this.quarantineDir = quarantine == null || quarantine.isBlank() ? null : Paths.get(quarantine);
+
+        // Uploaded backups are deleted by per-domain policy and, above the high-water mark, oldest first;
+        // split jobs that would push TEMP_DIR over it upload byte ranges instead
+        this.retentionIntervalMinutes = Long.parseLong(dotenv.get("BACKUP_RETENTION_INTERVAL_MINUTES", "60"));
+        this.retention = new RetentionManager(this.backupDir, Paths.get(tempDir),
+                new RetentionManager.Policy(Integer.parseInt(dotenv.get("BACKUP_KEEP_LAST", "0")), Integer.parseInt(dotenv.get("BACKUP_KEEP_DAYS", "0"))),
+                RetentionManager.parsePolicies(dotenv.get("BACKUP_RETENTION")),
+                Double.parseDouble(dotenv.get("BACKUP_DISK_HIGH_WATER", "0.90")),
+                Double.parseDouble(dotenv.get("BACKUP_DISK_LOW_WATER", "0.80")),
+                BackupWatcher::isBackupFile, this::isUploaded,
+                path -> activeBackups.contains(path) || activeSplitDirs.contains(path), BackupWatcher::domainOf);
+
+        // Periodic pass that enqueues backups which never produced a watch event
+        this.reconcileIntervalMinutes = Long.parseLong(dotenv.get("BACKUP_RECONCILE_INTERVAL_MINUTES", "15"));
+        this.reconciler = new BackupReconciler(this.backupDir, processedIndex, BackupWatcher::isBackupFile,
+                path -> activeBackups.contains(path) || ignoredBackups.contains(path) || isRejected(path),
+                path -> jobExecutor.submit(() -> handleNewBackup(path)));
     }
 
     public void startWatching() {
-        executorService.submit(() -> {
+        // The journal is loaded before any new job can append to it
+        try {
+            Map<String, BackupJob> unfinishedJobs = journal.load();
+            unfinishedJobs.values().forEach(job -> activeBackups.add(job.getFilePath()));
+            jobExecutor.submit(() -> resumeJobs(unfinishedJobs));
+        } catch (IOException e) {
+            System.err.println("Error reading the backup journal: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        // The watch loop blocks in take() for its whole life, so it gets a dedicated platform thread
+        watchThread = new Thread(() -> {
             try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                registerAllSubdirectories(backupDir, watchService);
+                watchedDirectories = new WatchedDirectoryRegistry(watchService, maxWatches);
+                registerAllSubdirectories(backupDir, false);
                 System.out.println("Started watching directory: " + backupDir);
 
+                // Everything that arrives from now on produces events, so catch up on what was missed before
+                scheduler.scheduleWithFixedDelay(() -> jobExecutor.submit(reconciler::reconcile),
+                        0, reconcileIntervalMinutes, TimeUnit.MINUTES);
+                scheduler.scheduleWithFixedDelay(() -> jobExecutor.submit(retention::enforce),
+                        retentionIntervalMinutes, retentionIntervalMinutes, TimeUnit.MINUTES);
+
                 while (true) {
                     WatchKey key;
 
@@ -60,61 +241,172 @@ public class BackupWatcher {
                         return;
                     }
 
+                    Path dir = (Path) key.watchable();
                     for (WatchEvent<?> event : key.pollEvents()) {
                         WatchEvent.Kind<?> kind = event.kind();
                         if (kind == StandardWatchEventKinds.OVERFLOW) {
+                            recoverFromOverflow(dir);
                             continue;
                         }
                         WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path fileName = ev.context();
-                        Path filePath = ((Path) key.watchable()).resolve(fileName);
-                        System.out.println("Event kind: " + kind + ". File affected: " + filePath);
+                        Path filePath = dir.resolve(ev.context());
+                        if (kind != StandardWatchEventKinds.ENTRY_MODIFY) {
+                            System.out.println("Event kind: " + kind + ". File affected: " + filePath);
+                        }
                         if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                            if (Files.isDirectory(filePath)) {
-                                registerAllSubdirectories(filePath, watchService);
-                            } else if (Files.isRegularFile(filePath) && (fileName.toString().endsWith(".zip") || fileName.toString().endsWith(".daf"))) {
-                                executorService.submit(() -> handleNewBackup(filePath));
-                            }
+                            onCreated(filePath);
+                        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                            stabilizer.touch(filePath);
+                        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                            onDeleted(filePath);
                         }
                     }
 
-                    boolean valid = key.reset();
-                    if (!valid) {
-                        System.out.println("Watch key no longer valid");
-                        break;
+                    // An invalid key only means this directory is gone; the rest of the tree is still watched
+                    if (!key.reset()) {
+                        System.out.println("Watch key no longer valid: " + dir);
+                        watchedDirectories.invalidated(key);
+                        snapshot.forget(dir);
                     }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        });
+        }, "backup-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
     }
 
-    private void registerAllSubdirectories(Path start, WatchService watchService) throws IOException {
-        Files.walk(start)
-                .filter(Files::isDirectory)
-                .forEach(dir -> {
-                    try {
-                        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    private void onCreated(Path filePath) throws IOException {
+        snapshot.created(filePath);
+        if (Files.isDirectory(filePath)) {
+            registerAllSubdirectories(filePath, true);
+        } else if (Files.isRegularFile(filePath) && isBackupFile(filePath)) {
+            jobExecutor.submit(() -> handleNewBackup(filePath));
+        }
+    }
+
+    private void onDeleted(Path filePath) {
+        snapshot.deleted(filePath);
+        if (watchedDirectories.isRegistered(filePath)) {
+            int cancelled = watchedDirectories.unregisterTree(filePath);
+            System.out.println("Stopped watching " + cancelled + " directories under " + filePath + " (" + watchedDirectories.size() + " still watched)");
+        }
+    }
+
+    // The kernel queue overflowed and events for this directory were dropped, so diff it against the last
+    // snapshot and replay the events that went missing
+    private void recoverFromOverflow(Path dir) {
+        try {
+            DirectorySnapshot.Diff diff = snapshot.rescan(dir);
+            System.err.println("Watch events overflowed for " + dir + ". Recovered " + diff.getCreated().size() + " created, "
+                    + diff.getModified().size() + " modified and " + diff.getDeleted().size() + " deleted entries.");
+
+            for (Path created : diff.getCreated()) {
+                onCreated(created);
+            }
+            for (Path modified : diff.getModified()) {
+                stabilizer.touch(modified);
+            }
+            for (Path deleted : diff.getDeleted()) {
+                onDeleted(deleted);
+            }
+        } catch (IOException e) {
+            System.err.println("Error rescanning " + dir + " after an overflow: " + e.getMessage());
+        }
+    }
+
+    // Directories created at runtime may already hold files by the time they are registered, so those are
+    // replayed as created entries instead of being snapshotted silently
+    private void registerAllSubdirectories(Path start, boolean replayContents) throws IOException {
+        long begin = System.currentTimeMillis();
+        List<Path> dirs = watchedDirectories.registerTree(start);
+        metrics.registered(dirs.size(), Duration.ofMillis(System.currentTimeMillis() - begin));
+        System.out.println("Registered " + dirs.size() + " directories under " + start + " in " + (System.currentTimeMillis() - begin)
+                + " ms (" + watchedDirectories.size() + " of at most " + watchedDirectories.getMaxWatches() + " watched"
+                + (watchedDirectories.skippedCount() > 0 ? ", " + watchedDirectories.skippedCount() + " skipped over the limit)" : ")"));
+
+        for (Path dir : dirs) {
+            try {
+                if (!replayContents) {
+                    snapshot.take(dir);
+                    continue;
+                }
+
+                for (Path created : snapshot.rescan(dir).getCreated()) {
+                    if (Files.isRegularFile(created) && isBackupFile(created)) {
+                        jobExecutor.submit(() -> handleNewBackup(created));
                     }
-                });
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Domain of a backup stored in a backup_<task>_<domain> directory, or null for anything else
+    private static String domainOf(Path filePath) {
+        Path parentDir = filePath.getParent();
+        if (parentDir == null || parentDir.getFileName() == null) {
+            return null;
+        }
+        String dirName = parentDir.getFileName().toString();
+        if (dirName.split("_").length < 3) {
+            return null;
+        }
+        return dirName.substring(dirName.indexOf('_', dirName.indexOf('_') + 1) + 1).replace('_', '.');
+    }
+
+    private boolean isUploaded(Path filePath) {
+        try {
+            return processedIndex.isProcessed(filePath, Files.size(filePath), Files.getLastModifiedTime(filePath).toMillis());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBackupFile(Path filePath) {
+        String fileName = filePath.getFileName().toString();
+        return fileName.endsWith(".zip") || fileName.endsWith(".daf");
     }
 
     private void handleNewBackup(Path filePath) {
+        // A watch event and a reconciliation pass can both report the same file
+        if (!activeBackups.add(filePath)) {
+            return;
+        }
+
         // Debug: Print the file path
         System.out.println("Handling file: " + filePath);
 
         // Check if the file exists
         if (!Files.exists(filePath)) {
             System.err.println("File does not exist: " + filePath);
+            activeBackups.remove(filePath);
             return;
         }
 
         // Check if the file is readable
         if (!Files.isReadable(filePath)) {
             System.err.println("File is not readable: " + filePath);
+            activeBackups.remove(filePath);
+            return;
+        }
+
+        // Replayed events (overflow recovery, reconciliation) may point at a backup that was already uploaded
+        try {
+            if (processedIndex.isProcessed(filePath, Files.size(filePath), Files.getLastModifiedTime(filePath).toMillis())) {
+                System.out.println("Backup was already processed: " + filePath);
+                activeBackups.remove(filePath);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Error checking whether " + filePath + " was processed: " + e.getMessage());
+        }
+
+        if (isRejected(filePath)) {
+            System.out.println("Backup was rejected as broken and has not changed since: " + filePath);
+            activeBackups.remove(filePath);
             return;
         }
 
@@ -122,6 +414,8 @@ public class BackupWatcher {
         Path parentDir = filePath.getParent();
         if (parentDir == null) {
             System.out.println("Invalid file path: " + filePath);
+            ignoredBackups.add(filePath);
+            activeBackups.remove(filePath);
             return;
         }
 
@@ -129,6 +423,8 @@ public class BackupWatcher {
         String[] parts = dirName.split("_");
         if (parts.length < 3) {
             System.out.println("Invalid directory name format: " + dirName);
+            ignoredBackups.add(filePath);
+            activeBackups.remove(filePath);
             return;
         }
 
@@ -137,44 +433,231 @@ public class BackupWatcher {
 
         // Immediately create and link the ClickUp task
         String newTaskId = createAndLinkClickUpTask(taskId, domainName);
+        if (newTaskId == null) {
+            // Left to the next reconciliation pass
+            activeBackups.remove(filePath);
+            return;
+        }
 
-        // Wait for the file to stabilize (stop changing in size)
-        long previousSize = -1;
-        long currentSize = 0;
-        int attempts = 0;
-        int maxAttempts = 20; // Increased maximum number of attempts
-        long delayBetweenAttempts = 30000; // Delay between attempts in milliseconds (30 seconds)
+        BackupJob job = new BackupJob(UUID.randomUUID().toString(), filePath, taskId, domainName);
+        job.setTaskId(newTaskId);
+        journal.record(job, BackupJob.State.DETECTED);
 
-        while (attempts < maxAttempts) {
-            try {
-                currentSize = Files.size(filePath);
-                System.out.println("Attempt " + (attempts + 1) + ": File size = " + currentSize + " bytes");
-
-                // If the file size hasn't changed since the last attempt AND it meets the minimum threshold, the file is stable
-                if (currentSize == previousSize && currentSize > 0) {
-                    System.out.println("File size stabilized. Proceeding with processing...");
-                    processFile(newTaskId, filePath, currentSize);
-                    break;
-                }
+        awaitStable(job);
+    }
 
-                // Update the previous size and wait before the next attempt
-                previousSize = currentSize;
-                attempts++;
-                Thread.sleep(delayBetweenAttempts);
-            } catch (IOException e) {
-                System.err.println("Error checking file size: " + e.getMessage());
-                e.printStackTrace();
+    private void awaitStable(BackupJob job) {
+        // Hand the file off once writes stop; no thread is held while waiting
+        stabilizer.track(job.getFilePath(), (stableFile, size) -> jobExecutor.submit(() -> {
+            metrics.stabilized(job.getDomain(), Duration.ofMillis(System.currentTimeMillis() - job.getDetectedAt()));
+            job.setSize(size);
+            job.setPartSize(partSizer.partSizeFor(size));
+            if (!verifyArchive(job)) {
                 return;
-            } catch (InterruptedException e) {
-                System.err.println("Thread interrupted while waiting for file stability: " + e.getMessage());
-                e.printStackTrace();
+            }
+            hashContent(job);
+            job.setState(BackupJob.State.STABLE);
+            journal.record(job, BackupJob.State.STABLE);
+            backupScheduler.submit(job);
+        }), (goneFile, reason) -> jobExecutor.submit(() -> {
+            // Called from the stabilizer tick, so the ClickUp call runs on the job executor
+            System.err.println("Abandoning job " + job.getId() + ": " + goneFile + " is gone");
+            job.setState(BackupJob.State.ABANDONED);
+            journal.record(job, BackupJob.State.ABANDONED);
+            activeBackups.remove(goneFile);
+            if (job.getTaskId() != null) {
+                commentOnClickUpTask(job.getTaskId(), "Backup " + goneFile.getFileName() + " was not uploaded because " + reason + ". Upload the backup again to retry.");
+            }
+        }));
+    }
+
+    // Truncated uploads from dropped SFTP sessions look stable too, so ZIP archives are checked before any
+    // byte is uploaded. .daf files have no structure to check
+    private boolean verifyArchive(BackupJob job) {
+        Path filePath = job.getFilePath();
+        if (!verifyZip || !filePath.getFileName().toString().endsWith(".zip")) {
+            return true;
+        }
+
+        long start = System.currentTimeMillis();
+        String problem = zipChecker.check(filePath);
+        metrics.pass(job.getDomain(), "verify", job.getSize(), Duration.ofMillis(System.currentTimeMillis() - start));
+        if (problem == null) {
+            System.out.println("Verified " + filePath + " in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        }
+
+        System.err.println("Rejecting broken backup " + filePath + ": " + problem);
+        metrics.failed(job.getDomain(), "verify");
+        String note = "Backup " + filePath.getFileName() + " was not uploaded because the archive is broken: " + problem + ".";
+        if (quarantineDir != null) {
+            try {
+                Path target = quarantineDir.resolve(job.getDomain()).resolve(System.currentTimeMillis() + "_" + filePath.getFileName());
+                Files.createDirectories(target.getParent());
+                Files.move(filePath, target);
+                note += " It was moved to " + target + ".";
+            } catch (IOException e) {
+                System.err.println("Error quarantining " + filePath + ": " + e.getMessage());
+                rememberRejected(filePath);
+            }
+        } else {
+            rememberRejected(filePath);
+        }
+
+        commentOnClickUpTask(job.getTaskId(), note + " Upload the backup again to retry.");
+        job.setState(BackupJob.State.ABANDONED);
+        journal.record(job, BackupJob.State.ABANDONED);
+        activeBackups.remove(filePath);
+        return false;
+    }
+
+    // A rejected backup is skipped until its size or mtime changes, e.g. when the client uploads it again
+    private void rememberRejected(Path filePath) {
+        try {
+            rejectedBackups.put(filePath, Files.size(filePath) + ":" + Files.getLastModifiedTime(filePath).toMillis());
+        } catch (IOException e) {
+            rejectedBackups.remove(filePath);
+        }
+    }
+
+    private boolean isRejected(Path filePath) {
+        String rejected = rejectedBackups.get(filePath);
+        if (rejected == null) {
+            return false;
+        }
+        try {
+            if (rejected.equals(Files.size(filePath) + ":" + Files.getLastModifiedTime(filePath).toMillis())) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Gone, nothing left to skip
+        }
+        rejectedBackups.remove(filePath);
+        return false;
+    }
+
+    // One sequential read yields the whole-file hash for deduplication and every part's checksums, so the
+    // upload path does not read the parts a second time
+    private void hashContent(BackupJob job) {
+        long start = System.currentTimeMillis();
+        try {
+            PartManifest planned = PartManifest.describeFile(job.getFilePath(), job.getSize(), job.getPartSize(), job::partName);
+            job.setPlannedManifest(planned);
+            job.setContentHash(planned.getSha256());
+            metrics.pass(job.getDomain(), "hash", job.getSize(), Duration.ofMillis(System.currentTimeMillis() - start));
+            System.out.println("Hashed " + job.getFilePath() + " in " + (System.currentTimeMillis() - start) + " ms: sha256 " + planned.getSha256());
+        } catch (IOException e) {
+            // Parts are still checksummed one by one while uploading, only deduplication is lost
+            metrics.failed(job.getDomain(), "hash");
+            System.err.println("Error hashing " + job.getFilePath() + ": " + e.getMessage());
+        }
+    }
+
+    // The splitter writes the manifest of the hashing pass; a job resumed after a restart, or one whose
+    // hashing failed, is hashed here, in the same single read
+    private PartManifest plannedManifest(BackupJob job) throws IOException {
+        PartManifest planned = job.getPlannedManifest();
+        if (planned == null || planned.getPartSize() != job.getPartSize()) {
+            hashContent(job);
+            planned = job.getPlannedManifest();
+        }
+        if (planned == null) {
+            throw new IOException("Could not checksum " + job.getFilePath() + " for its manifest");
+        }
+        return planned;
+    }
+
+    private void runJob(BackupJob job) {
+        try {
+            processFile(job);
+        } catch (IOException | RuntimeException e) {
+            metrics.failed(job.getDomain(), "process");
+            System.err.println("Error processing backup " + job.getFilePath() + ": " + e.getMessage());
+            e.printStackTrace();
+            retryLater(job, e.getMessage());
+        }
+    }
+
+    // A job that failed after its upload retries runs again after a growing delay, from the step it
+    // reached. The task gets a comment on the first failure, so the upload isn't silently stuck
+    private void retryLater(BackupJob job, String problem) {
+        int failures = job.runFailed();
+        long delay = Math.min(uploadRetryDelayMillis << Math.min(failures + 3, 20), JOB_RETRY_MAX_DELAY_MILLIS);
+        System.err.println("Backup job " + job.getId() + " for " + job.getFilePath() + " failed (" + problem + "). Retrying in " + delay / 1000 + " s.");
+        if (failures == 1 && job.getTaskId() != null) {
+            commentOnClickUpTask(job.getTaskId(), "Backup " + job.getFilePath().getFileName() + " could not be uploaded yet because "
+                    + problem + ". The upload is retried automatically and the task is completed once it goes through.");
+        }
+
+        try {
+            scheduler.schedule(() -> jobExecutor.submit(() -> rerunJob(job)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Shutting down, job " + job.getId() + " stays in the journal and resumes on restart");
+        }
+    }
+
+    // Same checks as resuming from the journal: a backup that is gone or changed in the meantime is dropped
+    private void rerunJob(BackupJob job) {
+        Path filePath = job.getFilePath();
+        String reason;
+        try {
+            if (Files.size(filePath) == job.getSize()) {
+                backupScheduler.submit(job);
                 return;
             }
+            reason = "it changed";
+        } catch (IOException e) {
+            reason = "it can no longer be read";
         }
+        System.err.println("Abandoning job " + job.getId() + ": " + filePath + " " + reason + " after a failed upload");
+        job.setState(BackupJob.State.ABANDONED);
+        journal.record(job, BackupJob.State.ABANDONED);
+        activeBackups.remove(filePath);
+        commentOnClickUpTask(job.getTaskId(), "Backup " + filePath.getFileName() + " was not uploaded because " + reason + " after a failed upload. Upload the backup again to retry.");
+    }
 
-        // If the file size never stabilized, log an error and return
-        if (attempts >= maxAttempts) {
-            System.err.println("File size did not stabilize after " + maxAttempts + " attempts. Aborting processing.");
+    // Picks up every job the journal still lists as unfinished, continuing from its last finished step
+    private void resumeJobs(Map<String, BackupJob> jobs) {
+        // No job is running yet, so any split directory left in TEMP_DIR is an orphan of a previous run
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(tempDir), "split_*")) {
+            for (Path orphan : stream) {
+                System.out.println("Removing orphaned split directory: " + orphan);
+                deleteRecursively(orphan);
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning up orphaned split directories: " + e.getMessage());
+        }
+
+        for (BackupJob job : jobs.values()) {
+            Path filePath = job.getFilePath();
+            if (!Files.exists(filePath)) {
+                System.err.println("Backup no longer exists, abandoning job: " + filePath);
+                journal.record(job, BackupJob.State.ABANDONED);
+                activeBackups.remove(filePath);
+                continue;
+            }
+
+            if (job.getState() == BackupJob.State.DETECTED) {
+                System.out.println("Resuming job " + job.getId() + ": waiting for " + filePath + " to stabilize");
+                awaitStable(job);
+                continue;
+            }
+
+            try {
+                if (Files.size(filePath) != job.getSize()) {
+                    // The next reconciliation pass picks the new content up as a fresh backup
+                    System.err.println("Backup changed since it was journaled, abandoning job: " + filePath);
+                    journal.record(job, BackupJob.State.ABANDONED);
+                    activeBackups.remove(filePath);
+                    continue;
+                }
+            } catch (IOException e) {
+                System.err.println("Error checking file size: " + e.getMessage());
+                continue;
+            }
+
+            System.out.println("Resuming job " + job.getId() + ": " + job.getUploadedParts().size() + " of " + job.partCount() + " parts already uploaded");
+            backupScheduler.submit(job);
         }
     }
 
@@ -221,62 +704,458 @@ public class BackupWatcher {
         }
     }
 
-    private void processFile(String taskId, Path filePath, long fileSize) throws IOException {
-        long partSize = 900 * 1024L * 1024L; // 900 MB in bytes
+    private void processFile(BackupJob job) throws IOException {
         String uniqueId = UUID.randomUUID().toString();
         Path outputDir = Paths.get(tempDir + "/split_" + uniqueId);
+        activeSplitDirs.add(outputDir);
+        try {
+            processFile(job, outputDir);
+        } finally {
+            // Parts left by failed uploads are useless, resumed jobs upload byte ranges of the source
+            activeSplitDirs.remove(outputDir);
+            if (Files.exists(outputDir)) {
+                deleteRecursively(outputDir);
+            }
+        }
+    }
+
+    private void processFile(BackupJob job, Path outputDir) throws IOException {
+        String taskId = job.getTaskId();
+        Path filePath = job.getFilePath();
+        long fileSize = job.getSize();
+        long partSize = job.getPartSize();
+        String mode = uploadMode;
 
         System.out.println("File size: " + fileSize + " bytes");
         System.out.println("Part size: " + partSize + " bytes");
-        System.out.println("Should split the file? " + (fileSize > partSize));
+        System.out.println("Should split the file? " + job.isSplit());
+
+        if (dedupEnabled && job.getUploadedParts().isEmpty() && job.getState() != BackupJob.State.MANIFEST_UPLOADED) {
+            ContentHashIndex.Entry previous = contentHashes.find(job.getDomain(), job.getContentHash(), fileSize);
+            if (previous != null) {
+                recordUnchanged(job, previous);
+                return;
+            }
+        }
+
+        // Split, pipelined and chunked uploads stage data in TEMP_DIR; ranged uploads need no disk at all
+        if (!"ranged".equals(mode) && job.isSplit() && job.getUploadedParts().isEmpty()) {
+            long staged = "split".equals(mode) ? fileSize : Math.min(fileSize, pipelineWindow * partSize);
+            if (!retention.hasRoomInTemp(staged)) {
+                System.err.println("Not enough room in " + tempDir + " to stage " + staged + " bytes for " + filePath + ". Uploading byte ranges instead.");
+                metrics.failed(job.getDomain(), "disk");
+                mode = "ranged";
+            }
+        }
 
-        if (fileSize > partSize) {
+        if (job.getState() != BackupJob.State.MANIFEST_UPLOADED) {
+            try {
+                sink.begin(job);
+            } catch (IOException e) {
+                metrics.failed(job.getDomain(), "sink");
+                System.err.println("Error preparing " + sink.getName() + " for " + filePath + ".");
+                e.printStackTrace();
+                retryLater(job, "preparing " + sink.getName() + " failed: " + e.getMessage());
+                return;
+            }
+        }
+
+        if ("chunked".equals(mode) && job.getUploadedParts().isEmpty()) {
+            // A rerun after a crash finds the packs that were attached before it in the chunk index
+            if (job.getState() == BackupJob.State.MANIFEST_UPLOADED || uploadChunks(job, outputDir)) {
+                finishUpload(job);
+            } else {
+                System.err.println("Not every chunk pack was uploaded for " + filePath + ".");
+                retryLater(job, "not every chunk pack was uploaded");
+            }
+            return;
+        }
+
+        if (!job.isSplit()) {
+            System.out.println("File size is within the limit. Attaching the file directly.");
+            if (!job.getUploadedParts().contains(1)) {
+                uploadPart(job, 1, filePath, 0, RequestBody.create(filePath.toFile(), MediaType.parse("application/octet-stream")));
+            }
+        } else if ("ranged".equals(mode) || !job.getUploadedParts().isEmpty()) {
+            // Resumed jobs always continue with ranged uploads, which need no split copy on disk
+            System.out.println("File size exceeds part size. Uploading byte ranges of the file as parts.");
+            uploadRangedParts(job);
+        } else if ("split".equals(mode)) {
             System.out.println("File size exceeds part size. Splitting file into parts.");
-            ZipFileSplitter.splitFile(filePath, outputDir, partSize);
+            uploadSplitParts(job, outputDir);
+        } else {
+            System.out.println("File size exceeds part size. Splitting and uploading parts in a pipeline.");
+            uploadPipelinedParts(job, outputDir);
+        }
 
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDir)) {
-                List<Path> parts = new ArrayList<>();
-                stream.forEach(part -> {
-                    if (Files.isRegularFile(part)) {
-                        parts.add(part);
-                    }
-                });
+        if (job.getUploadedParts().size() < job.partCount()) {
+            System.err.println("Only " + job.getUploadedParts().size() + " of " + job.partCount() + " parts were uploaded for " + filePath + ".");
+            retryLater(job, "only " + job.getUploadedParts().size() + " of " + job.partCount() + " parts were uploaded");
+            return;
+        }
+
+        // The manifest goes last, so its presence means every part it lists was attached
+        if (job.getState() != BackupJob.State.MANIFEST_UPLOADED) {
+            try {
+                sink.complete(job);
+            } catch (IOException e) {
+                metrics.failed(job.getDomain(), "sink");
+                System.err.println("Error completing the upload of " + filePath + " to " + sink.getName() + ".");
+                e.printStackTrace();
+                retryLater(job, "completing the upload to " + sink.getName() + " failed: " + e.getMessage());
+                return;
+            }
+
+            RequestBody manifestBody = RequestBody.create(job.manifest().toJson(), MediaType.parse("application/json"));
+            try {
+                attachWithRetry(job, 0, job.manifestName(), manifestBody);
+            } catch (IOException e) {
+                metrics.failed(job.getDomain(), "manifest");
+                System.err.println("Error attaching the manifest for " + filePath + ".");
+                e.printStackTrace();
+                retryLater(job, "attaching the manifest failed: " + e.getMessage());
+                return;
+            }
+            job.setState(BackupJob.State.MANIFEST_UPLOADED);
+            journal.record(job, BackupJob.State.MANIFEST_UPLOADED);
+        }
+
+        finishUpload(job);
+    }
+
+    private void finishUpload(BackupJob job) throws IOException {
+        String location = sink.location(job);
+        if (sink.isExternal()) {
+            commentOnClickUpTask(job.getTaskId(), "Backup " + job.getFilePath().getFileName() + " (" + job.getSize() + " bytes, SHA-256 "
+                    + job.getContentHash() + ") is stored at " + location);
+        }
+
+        // Mark the task as completed after successful processing
+        markClickUpTaskAsCompleted(job.getTaskId());
+        if (job.getContentHash() != null) {
+            contentHashes.record(job.getDomain(), job.getContentHash(), job.getSize(), job.getTaskId(), job.getFilePath().getFileName().toString());
+        }
+        catalog.record(job, "uploaded", null, sink.getName(), location);
+        completeJob(job, "uploaded");
+    }
+
+    // The same bytes are already attached to an earlier task, so the new task only points there
+    private void recordUnchanged(BackupJob job, ContentHashIndex.Entry previous) throws IOException {
+        System.out.println("Backup " + job.getFilePath() + " is identical to " + previous.getFileName() + " (task " + previous.getTaskId() + "), skipping the upload");
+        linkClickUpTasks(job.getTaskId(), previous.getTaskId());
+        commentOnClickUpTask(job.getTaskId(), "Backup unchanged since " + java.time.Instant.ofEpochMilli(previous.getTime())
+                + ". The content (SHA-256 " + job.getContentHash() + ") is identical to " + previous.getFileName()
+                + ", attached to https://app.clickup.com/t/" + previous.getTaskId());
+        markClickUpTaskAsCompleted(job.getTaskId());
+        BackupCatalog.Entry same = catalog.byTask(previous.getTaskId());
+        catalog.record(job, "unchanged", previous.getTaskId(), same != null ? same.getSink() : null, same != null ? same.getLocation() : null);
+        completeJob(job, "unchanged");
+    }
+
+    private void completeJob(BackupJob job, String outcome) throws IOException {
+        metrics.completed(job.getDomain(), outcome, Duration.ofMillis(System.currentTimeMillis() - job.getDetectedAt()));
+        job.setState(BackupJob.State.COMPLETED);
+        journal.record(job, BackupJob.State.COMPLETED);
+        processedIndex.record(BackupIndex.fingerprint(job.getFilePath()));
+        activeBackups.remove(job.getFilePath());
+    }
+
+    // Checksums the bytes of one part, attaches them with retries and journals the result
+    private boolean uploadPart(BackupJob job, int partNumber, Path source, long sourceOffset, RequestBody body) {
+        String partName = job.partName(partNumber);
+        try {
+            PartManifest.Part checksums = job.plannedPart(partNumber);
+            if (checksums == null) {
+                checksums = PartManifest.describe(source, sourceOffset, job.partLength(partNumber));
+            }
+            System.out.println("Attaching part: " + partName + " (crc32c " + checksums.getCrc32c() + ")");
+            attachWithRetry(job, partNumber, partName, new ThrottledRequestBody(body, bandwidthLimiter, job.getDomain()));
+
+            job.partUploaded(checksums.at(partNumber, partName, job.partOffset(partNumber)));
+            job.setState(BackupJob.State.PART_UPLOADED);
+            journal.record(job, BackupJob.State.PART_UPLOADED, job.getPartChecksums().get(partNumber));
+            return true;
+        } catch (IOException e) {
+            metrics.failed(job.getDomain(), "part");
+            System.err.println("Giving up on part " + partName + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Stores a part (partNumber 0 for other files) in the sink, returns the id the sink gave it
+    private String attachWithRetry(BackupJob job, int partNumber, String fileName, RequestBody body) throws IOException {
+        long start = System.currentTimeMillis();
+        long delay = uploadRetryDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            long attemptStart = System.currentTimeMillis();
+            try {
+                String id = partNumber > 0 ? sink.putPart(job, partNumber, fileName, body) : sink.putObject(job, fileName, body);
+                job.attachmentUploaded(fileName, id);
+                partSizer.observe(body.contentLength(), System.currentTimeMillis() - attemptStart);
+                uploadScheduler.onSuccess(body.contentLength(), System.currentTimeMillis() - attemptStart);
+                metrics.uploaded(job.getDomain(), body.contentLength(), Duration.ofMillis(System.currentTimeMillis() - start), true);
+                return id;
+            } catch (IOException e) {
+                uploadScheduler.onFailure();
+                if (attempt >= uploadMaxAttempts) {
+                    metrics.uploaded(job.getDomain(), body.contentLength(), Duration.ofMillis(System.currentTimeMillis() - start), false);
+                    throw e;
+                }
+                metrics.retried(job.getDomain());
 
-                // Create a thread pool for concurrent uploads
-                ExecutorService uploadExecutor = Executors.newFixedThreadPool(3);
-                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                // Exponential backoff with jitter, so parallel parts don't retry in lockstep
+                long sleep = delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                System.err.println("Attempt " + attempt + " to attach " + fileName + " failed: " + e.getMessage() + ". Retrying in " + sleep / 1000 + " s.");
+                try {
+                    uploadScheduler.sleepOutsideSlot(sleep);
+                } catch (InterruptedException | CancellationException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while retrying " + fileName, ex);
+                }
+                delay = Math.min(delay * 2, 5 * 60 * 1000L);
+            }
+        }
+    }
 
-                // Submit upload tasks
-                for (Path part : parts) {
-                    CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                        try {
-                            System.out.println("Attaching part: " + part);
-                            attachBackupToClickUpTask(taskId, part);
+    private void uploadRangedParts(BackupJob job) {
+        // Parts are read straight from the original file, so nothing is written to TEMP_DIR
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= job.partCount(); partNumber++) {
+            if (job.getUploadedParts().contains(partNumber)) {
+                continue;
+            }
+
+            int part = partNumber;
+            RequestBody partBody = new FileRangeRequestBody(job.getFilePath(), job.partOffset(part), job.partLength(part), MediaType.parse("application/octet-stream"));
+            futures.add(uploadScheduler.submit(job.getSize(), () -> uploadPart(job, part, job.getFilePath(), job.partOffset(part), partBody)));
+        }
+
+        // Wait for all uploads to complete
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void uploadSplitParts(BackupJob job, Path outputDir) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Path> parts;
+        try {
+            parts = ZipFileSplitter.splitFile(job.getFilePath(), outputDir, job.getPartSize(), splitThreads, splitPreallocate, plannedManifest(job), null, part -> { });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting " + job.getFilePath(), e);
+        }
+        metrics.pass(job.getDomain(), "split", job.getSize(), Duration.ofMillis(System.currentTimeMillis() - start));
+        job.setState(BackupJob.State.SPLIT);
+        journal.record(job, BackupJob.State.SPLIT);
+
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+            // Submit upload tasks; a failed part stays on disk until the job is over
+            for (Path part : parts) {
+                CompletableFuture<Void> future = uploadScheduler.submit(job.getSize(), () -> {
+                    try {
+                        RequestBody partBody = RequestBody.create(part.toFile(), MediaType.parse("application/octet-stream"));
+                        if (uploadPart(job, partNumber(part), part, 0, partBody)) {
                             Files.delete(part);
-                        } catch (IOException e) {
-                            throw new CompletionException(e);
                         }
-                    }, uploadExecutor);
-                    futures.add(future);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+                futures.add(future);
+            }
+
+            // Wait for all uploads to complete
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+            // Clean up the temporary directory
+            if (job.getUploadedParts().size() == job.partCount()) {
+                deleteRecursively(outputDir);
+            }
+        } catch (IOException | CompletionException e) {
+            System.err.println("Error splitting or attaching file parts: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void uploadPipelinedParts(BackupJob job, Path outputDir) throws IOException {
+        // Each part is queued for upload as soon as it is written; the window caps parts on disk.
+        // Failed parts are still deleted to free the window, a resumed job re-reads them from the source.
+        Semaphore window = new Semaphore(pipelineWindow);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        long start = System.currentTimeMillis();
+
+        try {
+            ZipFileSplitter.splitFile(job.getFilePath(), outputDir, job.getPartSize(), splitThreads, splitPreallocate, plannedManifest(job), window, part -> futures.add(uploadScheduler.submit(job.getSize(), () -> {
+                try {
+                    RequestBody partBody = RequestBody.create(part.toFile(), MediaType.parse("application/octet-stream"));
+                    uploadPart(job, partNumber(part), part, 0, partBody);
+                } finally {
+                    try {
+                        Files.deleteIfExists(part);
+                    } catch (IOException e) {
+                        System.err.println("Error deleting part " + part + ": " + e.getMessage());
+                    }
+                    window.release();
+                }
+            })));
+            metrics.pass(job.getDomain(), "split", job.getSize(), Duration.ofMillis(System.currentTimeMillis() - start));
+            job.setState(BackupJob.State.SPLIT);
+            journal.record(job, BackupJob.State.SPLIT);
+
+            // Wait for the remaining uploads to complete
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting " + job.getFilePath(), e);
+        } finally {
+            deleteRecursively(outputDir);
+        }
+    }
+
+    // Cuts the backup into content-defined chunks and writes those the chunk index doesn't know into pack
+    // files of up to one part size, each attached as soon as it is full. The recipe goes last
+    private boolean uploadChunks(BackupJob job, Path outputDir) throws IOException {
+        String fileName = job.getFilePath().getFileName().toString();
+        ChunkRecipe recipe = new ChunkRecipe(fileName, job.getSize(), job.getContentHash());
+        Map<String, ChunkRecipe.Chunk> packed = new HashMap<>();
+        Semaphore window = new Semaphore(pipelineWindow);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long[] reused = new long[1];
+        Pack[] pack = new Pack[1];
+        long start = System.currentTimeMillis();
+        Files.createDirectories(outputDir);
+
+        try {
+            chunker.chunk(job.getFilePath(), (data, offset, length) -> {
+                digest.update(data, offset, length);
+                String hash = HexFormat.of().formatHex(digest.digest());
+
+                ChunkRecipe.Chunk known = chunkIndex.find(job.getDomain(), hash);
+                if (known == null) {
+                    known = packed.get(hash);
+                }
+                if (known != null) {
+                    recipe.getChunks().add(known);
+                    reused[0] += length;
+                    return;
+                }
+
+                if (pack[0] == null) {
+                    try {
+                        window.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a pack slot");
+                    }
+                    pack[0] = new Pack(outputDir, fileName + ".pack" + (futures.size() + 1));
                 }
 
-                // Wait for all uploads to complete
-                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-                uploadExecutor.shutdown();
+                ChunkRecipe.Chunk chunk = new ChunkRecipe.Chunk(hash, length, job.getTaskId(), pack[0].name, pack[0].size);
+                pack[0].out.write(data, offset, length);
+                pack[0].size += length;
+                pack[0].chunks.add(chunk);
+                packed.put(hash, chunk);
+                recipe.getChunks().add(chunk);
 
-                // Clean up the temporary directory
-                Files.delete(outputDir);
+                if (pack[0].size + chunker.getMaxSize() > job.getPartSize()) {
+                    futures.add(uploadPack(job, pack[0], window, failed));
+                    pack[0] = null;
+                }
+            });
+            if (pack[0] != null) {
+                futures.add(uploadPack(job, pack[0], window, failed));
+            }
+            metrics.pass(job.getDomain(), "chunk", job.getSize(), Duration.ofMillis(System.currentTimeMillis() - start));
+            job.setState(BackupJob.State.SPLIT);
+            journal.record(job, BackupJob.State.SPLIT);
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            deleteRecursively(outputDir);
+        }
+
+        System.out.println("Chunked " + fileName + " into " + recipe.getChunks().size() + " chunks: " + (job.getSize() - reused[0])
+                + " new bytes in " + futures.size() + " packs, " + reused[0] + " bytes already uploaded by earlier backups");
+        if (failed.get()) {
+            return false;
+        }
+
+        try {
+            attachWithRetry(job, 0, fileName + ChunkRecipe.SUFFIX, RequestBody.create(recipe.toJson(), MediaType.parse("application/json")));
+        } catch (IOException e) {
+            metrics.failed(job.getDomain(), "manifest");
+            System.err.println("Error attaching the chunk recipe for " + job.getFilePath() + ": " + e.getMessage());
+            return false;
+        }
+        job.setState(BackupJob.State.MANIFEST_UPLOADED);
+        journal.record(job, BackupJob.State.MANIFEST_UPLOADED);
+        return true;
+    }
+
+    private CompletableFuture<Void> uploadPack(BackupJob job, Pack pack, Semaphore window, AtomicBoolean failed) throws IOException {
+        pack.out.close();
+        return uploadScheduler.submit(job.getSize(), () -> {
+            try {
+                RequestBody body = RequestBody.create(pack.path.toFile(), MediaType.parse("application/octet-stream"));
+                attachWithRetry(job, 0, pack.name, new ThrottledRequestBody(body, bandwidthLimiter, job.getDomain()));
+                chunkIndex.record(job.getDomain(), pack.chunks);
             } catch (IOException e) {
-                System.err.println("Error splitting or attaching file parts: " + e.getMessage());
-                e.printStackTrace();
+                metrics.failed(job.getDomain(), "pack");
+                System.err.println("Giving up on pack " + pack.name + ": " + e.getMessage());
+                failed.set(true);
+            } finally {
+                try {
+                    Files.deleteIfExists(pack.path);
+                } catch (IOException e) {
+                    System.err.println("Error deleting pack " + pack.path + ": " + e.getMessage());
+                }
+                window.release();
             }
-        } else {
-            System.out.println("File size is within the limit. Attaching the file directly.");
-            attachBackupToClickUpTask(taskId, filePath);
+        });
+    }
+
+    private static class Pack {
+        private final String name;
+        private final Path path;
+        private final OutputStream out;
+        private final List<ChunkRecipe.Chunk> chunks = new ArrayList<>();
+        private long size;
+
+        private Pack(Path dir, String name) throws IOException {
+            this.name = name;
+            this.path = dir.resolve(name);
+            this.out = new BufferedOutputStream(Files.newOutputStream(path), 1024 * 1024);
         }
+    }
 
-        // Mark the task as completed after successful processing
-        markClickUpTaskAsCompleted(taskId);
+    private static int partNumber(Path part) {
+        String name = part.getFileName().toString();
+        return Integer.parseInt(name.substring(name.lastIndexOf(".part") + 5));
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
     }
 
     private void linkClickUpTaskToDomain(String backupTaskId, String domainTaskId) {
@@ -314,32 +1193,49 @@ public class BackupWatcher {
         }
     }
 
-    private void attachBackupToClickUpTask(String taskId, Path filePath) {
-        File file = filePath.toFile();
-        RequestBody fileBody = RequestBody.create(file, MediaType.parse("application/octet-stream"));
-
-        MultipartBody requestBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("attachment", file.getName(), fileBody)
+    private void linkClickUpTasks(String taskId, String linksTo) {
+        Request request = new Request.Builder()
+                .url("https://api.clickup.com/api/v2/task/" + taskId + "/link/" + linksTo)
+                .post(RequestBody.create(new byte[0], null))
+                .addHeader("accept", "application/json")
+                .addHeader("Authorization", clickUpApiKey)
                 .build();
 
+        try (Response response = client.newCall(request).execute()) {
+            System.out.println("Trying to link the ClickUp task to the task holding the same backup.");
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response);
+            }
+        } catch (IOException e) {
+            System.err.println("Error linking the ClickUp task to the previous backup task.");
+            e.printStackTrace();
+        }
+    }
+
+    private void commentOnClickUpTask(String taskId, String text) {
+        Map<String, Object> requestBodyMap = new HashMap<>();
+        requestBodyMap.put("comment_text", text);
+
+        Gson gson = new Gson();
+        String json = gson.toJson(requestBodyMap);
+
+        RequestBody body = RequestBody.create(json, MediaType.parse("application/json"));
+
         Request request = new Request.Builder()
-                .url("https://api.clickup.com/api/v2/task/" + taskId + "/attachment")
-                .post(requestBody)
+                .url("https://api.clickup.com/api/v2/task/" + taskId + "/comment")
+                .post(body)
                 .addHeader("accept", "application/json")
-                .addHeader("content-type", "multipart/form-data")
+                .addHeader("content-type", "application/json")
                 .addHeader("Authorization", clickUpApiKey)
                 .build();
 
         try (Response response = client.newCall(request).execute()) {
-            System.out.println("Trying to attach the file to the ClickUp task.");
+            System.out.println("Trying to comment on the ClickUp task.");
             if (!response.isSuccessful()) {
                 throw new IOException("Unexpected code " + response);
             }
-            assert response.body() != null;
-            System.out.println("Response: " + response.body().string());
         } catch (IOException e) {
-            System.err.println("Error attaching the file to the ClickUp task.");
+            System.err.println("Error commenting on the ClickUp task.");
             e.printStackTrace();
         }
     }
@@ -373,8 +1269,29 @@ public class BackupWatcher {
         }
     }
 
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public BackupCatalog getCatalog() {
+        return catalog;
+    }
+
+    public BackupScheduler getBackupScheduler() {
+        return backupScheduler;
+    }
+
     public void stopWatching() {
-        executorService.shutdownNow();
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        jobExecutor.shutdownNow();
+        uploadScheduler.shutdown();
         scheduler.shutdownNow();
+        journal.close();
+        processedIndex.close();
+        contentHashes.close();
+        chunkIndex.close();
+        catalog.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package com.denalistudio.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Token bucket that caps total upload bandwidth and splits it evenly between the domains currently
+// uploading, however many parts each of them has in flight
+public class BandwidthLimiter {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // A ReentrantLock instead of synchronized/wait keeps waiting virtual threads unpinned
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, Bucket> buckets = new LinkedHashMap<>();
+    private long bytesPerSecond;
+    private double globalTokens;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 0 or less removes the limit
+    public void setBytesPerSecond(long bytesPerSecond) {
+        lock.lock();
+        try {
+            refill();
+            this.bytesPerSecond = bytesPerSecond;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Backup upload bandwidth limit set to " + (bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited"));
+    }
+
+    public void register(String domain) {
+        lock.lock();
+        try {
+            refill();
+            buckets.computeIfAbsent(domain, d -> new Bucket()).streams++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void unregister(String domain) {
+        lock.lock();
+        try {
+            refill();
+            Bucket bucket = buckets.get(domain);
+            if (bucket != null && --bucket.streams <= 0) {
+                buckets.remove(domain);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void acquire(String domain, long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (bytesPerSecond <= 0) {
+                    return;
+                }
+
+                refill();
+                Bucket bucket = buckets.computeIfAbsent(domain, d -> new Bucket());
+                if (bucket.tokens >= bytes && globalTokens >= bytes) {
+                    bucket.tokens -= bytes;
+                    globalTokens -= bytes;
+                    bucket.bytesSent += bytes;
+                    return;
+                }
+
+                // Sleep until either bucket could have refilled enough, or until the limit or the set of
+                // active domains changes
+                double share = domainShare();
+                double seconds = Math.max((bytes - bucket.tokens) / share, (bytes - globalTokens) / bytesPerSecond);
+                changed.await(Math.max(1, (long) Math.ceil(seconds * 1000)), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> describe() {
+        lock.lock();
+        try {
+            refill();
+            Map<String, Object> domains = new LinkedHashMap<>();
+            for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+                Map<String, Object> domain = new LinkedHashMap<>();
+                domain.put("streams", entry.getValue().streams);
+                domain.put("bytesSent", entry.getValue().bytesSent);
+                domain.put("shareBytesPerSecond", bytesPerSecond > 0 ? (long) domainShare() : null);
+                domains.put(entry.getKey(), domain);
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("bytesPerSecond", bytesPerSecond);
+            result.put("activeDomains", buckets.size());
+            result.put("domains", domains);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double domainShare() {
+        return (double) bytesPerSecond / Math.max(1, buckets.size());
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefill) / 1_000_000_000.0;
+        lastRefill = now;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        // Buckets hold at most one second of their rate (never less than one chunk), which bounds bursts
+        double share = domainShare();
+        globalTokens = Math.min(Math.max(bytesPerSecond, CHUNK_SIZE), globalTokens + elapsed * bytesPerSecond);
+        for (Bucket bucket : buckets.values()) {
+            bucket.tokens = Math.min(Math.max(share, CHUNK_SIZE), bucket.tokens + elapsed * share);
+        }
+    }
+
+    private static class Bucket {
+        private int streams;
+        private double tokens;
+        private long bytesSent;
+    }
+}
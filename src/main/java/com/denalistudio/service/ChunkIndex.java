@@ -0,0 +1,109 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Where every uploaded chunk lives (task, pack attachment and offset), keyed by domain and SHA-256 and
+// persisted as an append-only log. Chunks are only recorded once their pack is attached. A recipe only
+// reuses chunks of its own domain, so restoring one client never depends on another client's tasks
+public class ChunkIndex {
+    private final Path indexFile;
+    private final Gson gson = new Gson();
+    private final Map<String, Map<String, ChunkRecipe.Chunk>> chunksByDomain = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    public ChunkIndex(Path stateDir) throws IOException {
+        Files.createDirectories(stateDir);
+        this.indexFile = stateDir.resolve("chunk-index.log");
+        if (Files.exists(indexFile)) {
+            load();
+        }
+    }
+
+    public ChunkRecipe.Chunk find(String domain, String sha256) {
+        return chunksByDomain.getOrDefault(domain, Map.of()).get(sha256);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, ChunkRecipe.Chunk> chunks : chunksByDomain.values()) {
+            size += chunks.size();
+        }
+        return size;
+    }
+
+    // All chunks of one pack are appended together and forced once
+    public synchronized void record(String domain, Collection<ChunkRecipe.Chunk> packChunks) {
+        Map<String, ChunkRecipe.Chunk> chunks = chunksByDomain.computeIfAbsent(domain, key -> new ConcurrentHashMap<>());
+        StringBuilder lines = new StringBuilder();
+        for (ChunkRecipe.Chunk chunk : packChunks) {
+            if (chunks.putIfAbsent(chunk.getSha256(), chunk) == null) {
+                lines.append(gson.toJson(new Entry(domain, chunk))).append('\n');
+            }
+        }
+        if (lines.length() == 0) {
+            return;
+        }
+
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error writing to the chunk index: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Entry entry = gson.fromJson(line, Entry.class);
+                    if (entry != null && entry.domain != null && entry.chunk != null && entry.chunk.getSha256() != null) {
+                        chunksByDomain.computeIfAbsent(entry.domain, key -> new ConcurrentHashMap<>())
+                                .putIfAbsent(entry.chunk.getSha256(), entry.chunk);
+                    }
+                } catch (JsonSyntaxException e) {
+                    System.err.println("Skipping unreadable chunk index entry: " + line);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private String domain;
+        private ChunkRecipe.Chunk chunk;
+
+        private Entry(String domain, ChunkRecipe.Chunk chunk) {
+            this.domain = domain;
+            this.chunk = chunk;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Ordered list of the content-defined chunks a backup consists of and the pack attachment holding each of
+// them, attached as <name>.recipe.json in place of the backup itself
+public class ChunkRecipe {
+    public static final String SUFFIX = ".recipe.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private String fileName;
+    private long totalSize;
+    private String sha256;
+    private long createdAt;
+    private List<Chunk> chunks = new ArrayList<>();
+
+    public ChunkRecipe(String fileName, long totalSize, String sha256) {
+        this.fileName = fileName;
+        this.totalSize = totalSize;
+        this.sha256 = sha256;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public static ChunkRecipe fromJson(String json) {
+        return GSON.fromJson(json, ChunkRecipe.class);
+    }
+
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    // Every pack the restore needs, as "taskId/packName"
+    public Set<String> packs() {
+        Set<String> packs = new LinkedHashSet<>();
+        for (Chunk chunk : chunks) {
+            packs.add(chunk.packKey());
+        }
+        return packs;
+    }
+
+    // Rebuilds the backup by copying every chunk out of its downloaded pack, keyed like packs()
+    public void restore(Path output, Map<String, Path> packFiles) throws IOException {
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Chunk chunk : chunks) {
+                Path pack = packFiles.get(chunk.packKey());
+                if (pack == null) {
+                    throw new IOException("Pack " + chunk.packKey() + " is missing for " + fileName);
+                }
+                try (FileChannel in = FileChannel.open(pack, StandardOpenOption.READ)) {
+                    long position = chunk.offset;
+                    long end = chunk.offset + chunk.length;
+                    while (position < end) {
+                        long copied = in.transferTo(position, end - position, out);
+                        if (copied <= 0 && position >= in.size()) {
+                            throw new IOException("Pack " + chunk.packKey() + " is shorter than the recipe expects");
+                        }
+                        position += copied;
+                    }
+                }
+            }
+        }
+
+        if (sha256 != null && !sha256.equals(hash(output))) {
+            throw new IOException("Restored " + fileName + " does not match its SHA-256 " + sha256);
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public String getFileName() { return fileName; }
+    public long getTotalSize() { return totalSize; }
+    public String getSha256() { return sha256; }
+    public long getCreatedAt() { return createdAt; }
+    public List<Chunk> getChunks() { return chunks; }
+
+    public static class Chunk {
+        private String sha256;
+        private long length;
+        private String taskId;
+        private String pack;
+        private long offset;
+
+        public Chunk() {
+        }
+
+        public Chunk(String sha256, long length, String taskId, String pack, long offset) {
+            this.sha256 = sha256;
+            this.length = length;
+            this.taskId = taskId;
+            this.pack = pack;
+            this.offset = offset;
+        }
+
+        public String packKey() {
+            return taskId + "/" + pack;
+        }
+
+        public String getSha256() { return sha256; }
+        public long getLength() { return length; }
+        public String getTaskId() { return taskId; }
+        public String getPack() { return pack; }
+        public long getOffset() { return offset; }
+    }
+}
@@ -0,0 +1,86 @@
+package com.denalistudio.service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.*;
+
+import java.io.IOException;
+
+// Attaches every part and manifest to the ClickUp task of the backup
+public class ClickUpBackupSink implements BackupSink {
+    private final OkHttpClient client;
+    private final String clickUpApiKey;
+
+    public ClickUpBackupSink(OkHttpClient client, String clickUpApiKey) {
+        this.client = client;
+        this.clickUpApiKey = clickUpApiKey;
+    }
+
+    @Override
+    public String getName() {
+        return "clickup";
+    }
+
+    @Override
+    public void begin(BackupJob job) {
+    }
+
+    @Override
+    public String putPart(BackupJob job, int partNumber, String name, RequestBody body) throws IOException {
+        return attachmentId(attachBackupToClickUpTask(job.getTaskId(), name, body));
+    }
+
+    @Override
+    public String putObject(BackupJob job, String name, RequestBody body) throws IOException {
+        return attachmentId(attachBackupToClickUpTask(job.getTaskId(), name, body));
+    }
+
+    @Override
+    public void complete(BackupJob job) {
+    }
+
+    @Override
+    public String location(BackupJob job) {
+        return "https://app.clickup.com/t/" + job.getTaskId();
+    }
+
+    @Override
+    public boolean isExternal() {
+        return false;
+    }
+
+    private String attachBackupToClickUpTask(String taskId, String fileName, RequestBody fileBody) throws IOException {
+        MultipartBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("attachment", fileName, fileBody)
+                .build();
+
+        Request request = new Request.Builder()
+                .url("https://api.clickup.com/api/v2/task/" + taskId + "/attachment")
+                .post(requestBody)
+                .addHeader("accept", "application/json")
+                .addHeader("content-type", "multipart/form-data")
+                .addHeader("Authorization", clickUpApiKey)
+                .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            System.out.println("Trying to attach " + fileName + " to the ClickUp task.");
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response);
+            }
+            assert response.body() != null;
+            String responseBody = response.body().string();
+            System.out.println("Response: " + responseBody);
+            return responseBody;
+        }
+    }
+
+    private static String attachmentId(String response) {
+        try {
+            JsonObject attachment = JsonParser.parseString(response).getAsJsonObject();
+            return attachment.has("id") ? attachment.get("id").getAsString() : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
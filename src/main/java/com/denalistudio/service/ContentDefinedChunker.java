@@ -0,0 +1,107 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+// FastCDC style content-defined chunking: cut points follow the content instead of fixed offsets, so bytes
+// inserted or removed early in a backup only change the chunks around them
+public class ContentDefinedChunker {
+    // The seed must never change, otherwise chunk boundaries (and with them every indexed hash) move
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x64656e616c69L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public ContentDefinedChunker(int avgSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        this.avgSize = 1 << bits;
+        this.minSize = this.avgSize / 4;
+        this.maxSize = this.avgSize * 8;
+
+        // Normalized chunking: a stricter mask before the average size and a looser one after it. The gear
+        // hash shifts left, so only its high bits depend on a full window of bytes
+        this.maskSmall = ((1L << (bits + 1)) - 1) << (63 - bits);
+        this.maskLarge = ((1L << (bits - 1)) - 1) << (65 - bits);
+    }
+
+    public interface ChunkConsumer {
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void chunk(Path file, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[maxSize * 2];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            while (true) {
+                // Keep at least one maximum-size chunk buffered unless the file ends first
+                if (!eof && end - start < maxSize) {
+                    if (start > 0) {
+                        System.arraycopy(buffer, start, buffer, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    }
+                    while (end < buffer.length) {
+                        int read = in.read(buffer, end, buffer.length - end);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += read;
+                    }
+                }
+
+                if (start == end) {
+                    return;
+                }
+
+                int length = cutPoint(buffer, start, end - start);
+                consumer.accept(buffer, start, length);
+                start += length;
+            }
+        }
+    }
+
+    private int cutPoint(byte[] data, int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(avgSize, limit);
+
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
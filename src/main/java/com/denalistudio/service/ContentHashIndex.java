@@ -0,0 +1,139 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Whole-file SHA-256 of the most recent uploaded backups of every domain, persisted as an append-only log
+public class ContentHashIndex {
+    private final Path indexFile;
+    private final int history;
+    private final Gson gson = new Gson();
+    private final Map<String, Deque<Entry>> byDomain = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    public ContentHashIndex(Path stateDir, int history) throws IOException {
+        Files.createDirectories(stateDir);
+        this.indexFile = stateDir.resolve("content-hashes.log");
+        this.history = history;
+        if (Files.exists(indexFile)) {
+            load();
+        }
+    }
+
+    // The most recent upload of the domain with the same content, or null
+    public synchronized Entry find(String domain, String sha256, long size) {
+        Deque<Entry> entries = byDomain.get(domain);
+        if (entries == null || sha256 == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (entry.size == size && sha256.equals(entry.sha256)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void record(String domain, String sha256, long size, String taskId, String fileName) {
+        Entry entry = new Entry();
+        entry.domain = domain;
+        entry.sha256 = sha256;
+        entry.size = size;
+        entry.taskId = taskId;
+        entry.fileName = fileName;
+        entry.time = System.currentTimeMillis();
+        put(entry);
+
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer line = ByteBuffer.wrap((gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error writing to the content hash index: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void load() throws IOException {
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Entry entry = gson.fromJson(line, Entry.class);
+                    if (entry != null && entry.domain != null) {
+                        put(entry);
+                        lines++;
+                    }
+                } catch (JsonSyntaxException e) {
+                    System.err.println("Skipping unreadable content hash entry: " + line);
+                }
+            }
+        }
+
+        // Only the last few hashes of each domain are kept, so rewrite the log once it holds many more
+        int kept = byDomain.values().stream().mapToInt(Deque::size).sum();
+        if (lines > 2 * kept + 100) {
+            List<String> compacted = new ArrayList<>();
+            for (Deque<Entry> entries : byDomain.values()) {
+                entries.descendingIterator().forEachRemaining(entry -> compacted.add(gson.toJson(entry)));
+            }
+            Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            Files.write(tmp, compacted, StandardCharsets.UTF_8);
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Newest first, trimmed to the configured history per domain
+    private void put(Entry entry) {
+        Deque<Entry> entries = byDomain.computeIfAbsent(entry.domain, domain -> new ArrayDeque<>());
+        entries.addFirst(entry);
+        while (entries.size() > history) {
+            entries.removeLast();
+        }
+    }
+
+    public static class Entry {
+        private String domain;
+        private String sha256;
+        private long size;
+        private String taskId;
+        private String fileName;
+        private long time;
+
+        public String getDomain() { return domain; }
+        public String getSha256() { return sha256; }
+        public long getSize() { return size; }
+        public String getTaskId() { return taskId; }
+        public String getFileName() { return fileName; }
+        public long getTime() { return time; }
+    }
+}
@@ -0,0 +1,111 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Last known contents (name, size, mtime) of every watched directory, used to work out which events
+// were lost when the watch service reports OVERFLOW
+public class DirectorySnapshot {
+    private final Map<Path, Map<String, Entry>> snapshots = new ConcurrentHashMap<>();
+
+    public void take(Path dir) throws IOException {
+        snapshots.put(dir, list(dir));
+    }
+
+    public void forget(Path dir) {
+        snapshots.keySet().removeIf(path -> path.startsWith(dir));
+    }
+
+    public int directoryCount() {
+        return snapshots.size();
+    }
+
+    // Keeps the snapshot current for events that were delivered, so a later diff doesn't report them again
+    public void created(Path path) {
+        Map<String, Entry> entries = snapshots.get(path.getParent());
+        if (entries == null) {
+            return;
+        }
+        try {
+            entries.put(path.getFileName().toString(), entry(Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+        } catch (IOException e) {
+            entries.remove(path.getFileName().toString());
+        }
+    }
+
+    public void deleted(Path path) {
+        Map<String, Entry> entries = snapshots.get(path.getParent());
+        if (entries != null) {
+            entries.remove(path.getFileName().toString());
+        }
+        forget(path);
+    }
+
+    // Rescans one directory, replaces its snapshot and returns what changed since the previous one
+    public Diff rescan(Path dir) throws IOException {
+        Map<String, Entry> previous = snapshots.getOrDefault(dir, Map.of());
+        Map<String, Entry> current = list(dir);
+        Diff diff = new Diff();
+
+        for (Map.Entry<String, Entry> entry : current.entrySet()) {
+            Entry before = previous.get(entry.getKey());
+            Path path = dir.resolve(entry.getKey());
+            if (before == null || before.directory != entry.getValue().directory) {
+                diff.created.add(path);
+            } else if (before.size != entry.getValue().size || before.modified != entry.getValue().modified) {
+                diff.modified.add(path);
+            }
+        }
+        for (String name : previous.keySet()) {
+            if (!current.containsKey(name)) {
+                diff.deleted.add(dir.resolve(name));
+            }
+        }
+
+        snapshots.put(dir, current);
+        return diff;
+    }
+
+    private static Map<String, Entry> list(Path dir) throws IOException {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    entries.put(path.getFileName().toString(), entry(Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+                } catch (IOException e) {
+                    // Removed between listing and stat
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Entry entry(BasicFileAttributes attributes) {
+        return new Entry(attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    private static class Entry {
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+
+        private Entry(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    public static class Diff {
+        private final List<Path> created = new ArrayList<>();
+        private final List<Path> modified = new ArrayList<>();
+        private final List<Path> deleted = new ArrayList<>();
+
+        public List<Path> getCreated() { return created; }
+        public List<Path> getModified() { return modified; }
+        public List<Path> getDeleted() { return deleted; }
+    }
+}
@@ -0,0 +1,55 @@
+package com.denalistudio.service;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Streams a byte range of the original file into the request, so a backup can be uploaded as parts
+// without writing part files first. The bytes are still copied through okio's buffer, so this saves
+// the disk writes, not the copy
+public class FileRangeRequestBody extends RequestBody {
+    private final Path file;
+    private final long offset;
+    private final long length;
+    private final MediaType contentType;
+
+    public FileRangeRequestBody(Path file, long offset, long length, MediaType contentType) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // A fresh channel per call keeps the body repeatable when OkHttp retries the request
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, sink);
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of " + file + " at offset " + position);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+}
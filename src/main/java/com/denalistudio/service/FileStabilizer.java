@@ -0,0 +1,193 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class FileStabilizer {
+    public interface Listener {
+        void onStable(Path file, long size);
+    }
+
+    // The file was deleted or can no longer be read, so it will never stabilize
+    public interface GoneListener {
+        void onGone(Path file, String reason);
+    }
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 64;
+    // A file still empty this many quiet periods after it appeared is abandoned
+    private static final int EMPTY_GIVE_UP_PERIODS = 30;
+
+    private final Duration defaultQuietPeriod;
+    private final Map<Path, Duration> rootQuietPeriods;
+    private final Map<Path, TrackedFile> tracked = new ConcurrentHashMap<>();
+    private final List<Set<Path>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long currentTick;
+
+    public FileStabilizer(ScheduledExecutorService scheduler, Duration defaultQuietPeriod, Map<Path, Duration> rootQuietPeriods) {
+        this.defaultQuietPeriod = defaultQuietPeriod;
+        this.rootQuietPeriods = new HashMap<>(rootQuietPeriods);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new HashSet<>());
+        }
+        this.currentTick = System.currentTimeMillis() / TICK_MILLIS;
+
+        // One shared tick drives every pending file, so waiting files hold no thread
+        scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Parses "path=seconds;path=seconds" as used by BACKUP_QUIET_PERIODS
+    public static Map<Path, Duration> parseQuietPeriods(String value) {
+        Map<Path, Duration> periods = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return periods;
+        }
+
+        for (String entry : value.split(";")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                System.err.println("Ignoring invalid quiet period entry: " + entry);
+                continue;
+            }
+            try {
+                periods.put(Path.of(parts[0].trim()), Duration.ofSeconds(Long.parseLong(parts[1].trim())));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid quiet period entry: " + entry);
+            }
+        }
+        return periods;
+    }
+
+    public void track(Path file, Listener listener, GoneListener goneListener) {
+        long now = System.currentTimeMillis();
+        TrackedFile trackedFile = new TrackedFile(listener, goneListener, quietPeriodFor(file).toMillis());
+        trackedFile.lastActivity = now;
+        trackedFile.trackedAt = now;
+
+        tracked.put(file, trackedFile);
+        schedule(file, now + trackedFile.quietMillis);
+        System.out.println("Waiting for writes to stop on: " + file + " (quiet period " + trackedFile.quietMillis / 1000 + " s)");
+    }
+
+    // Called for ENTRY_MODIFY events; only pushes the deadline, the wheel picks it up lazily
+    public void touch(Path file) {
+        TrackedFile trackedFile = tracked.get(file);
+        if (trackedFile != null) {
+            trackedFile.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isTracking(Path file) {
+        return tracked.containsKey(file);
+    }
+
+    public int pendingCount() {
+        return tracked.size();
+    }
+
+    private Duration quietPeriodFor(Path file) {
+        Path bestRoot = null;
+        for (Path root : rootQuietPeriods.keySet()) {
+            if (file.startsWith(root) && (bestRoot == null || root.getNameCount() > bestRoot.getNameCount())) {
+                bestRoot = root;
+            }
+        }
+        return bestRoot != null ? rootQuietPeriods.get(bestRoot) : defaultQuietPeriod;
+    }
+
+    private synchronized void schedule(Path file, long deadline) {
+        long tick = Math.max(deadline / TICK_MILLIS + 1, currentTick + 1);
+        wheel.get((int) (tick % WHEEL_SIZE)).add(file);
+    }
+
+    private void tick() {
+        try {
+            Set<Path> due;
+            synchronized (this) {
+                // A late run drains every bucket it skipped, not just the one for the current second
+                long nowTick = System.currentTimeMillis() / TICK_MILLIS;
+                due = new HashSet<>();
+                for (long tick = Math.max(currentTick + 1, nowTick - WHEEL_SIZE + 1); tick <= nowTick; tick++) {
+                    Set<Path> bucket = wheel.get((int) (tick % WHEEL_SIZE));
+                    due.addAll(bucket);
+                    bucket.clear();
+                }
+                currentTick = Math.max(currentTick, nowTick);
+            }
+
+            long now = System.currentTimeMillis();
+            for (Path file : due) {
+                TrackedFile trackedFile = tracked.get(file);
+                if (trackedFile != null) {
+                    check(file, trackedFile, now);
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic tick, so never let one escape
+            e.printStackTrace();
+        }
+    }
+
+    private void check(Path file, TrackedFile trackedFile, long now) {
+        long deadline = trackedFile.lastActivity + trackedFile.quietMillis;
+        if (deadline > now) {
+            schedule(file, deadline);
+            return;
+        }
+
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            System.err.println("File disappeared while waiting for it to stabilize: " + file);
+            tracked.remove(file);
+            trackedFile.goneListener.onGone(file, "it was deleted before the upload finished");
+            return;
+        } catch (IOException e) {
+            System.err.println("Error checking file size: " + e.getMessage());
+            tracked.remove(file);
+            trackedFile.goneListener.onGone(file, "it could not be read: " + e.getMessage());
+            return;
+        }
+
+        if (size == 0 && now - trackedFile.trackedAt > trackedFile.quietMillis * EMPTY_GIVE_UP_PERIODS) {
+            tracked.remove(file);
+            trackedFile.goneListener.onGone(file, "it stayed empty for " + (now - trackedFile.trackedAt) / 1000 + " s");
+            return;
+        }
+
+        // Events can be coalesced or lost, so a recent mtime still counts as activity
+        if (modified + trackedFile.quietMillis > now || size == 0) {
+            trackedFile.lastActivity = Math.max(modified, now - trackedFile.quietMillis + TICK_MILLIS);
+            schedule(file, trackedFile.lastActivity + trackedFile.quietMillis);
+            return;
+        }
+
+        tracked.remove(file);
+        System.out.println("File size stabilized at " + size + " bytes: " + file);
+        trackedFile.listener.onStable(file, size);
+    }
+
+    private static class TrackedFile {
+        private final Listener listener;
+        private final GoneListener goneListener;
+        private final long quietMillis;
+        private volatile long lastActivity;
+        private long trackedAt;
+
+        private TrackedFile(Listener listener, GoneListener goneListener, long quietMillis) {
+            this.listener = listener;
+            this.goneListener = goneListener;
+            this.quietMillis = quietMillis;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Rebuilds a backup from its parts as its manifest describes them. Parts are placed in any order, as
+// they arrive, each checked against the length and CRC32C the manifest lists before it is copied to its
+// offset; finish() then checks the whole-file SHA-256. Parts may be placed from several threads
+public class PartAssembler {
+    private final PartManifest manifest;
+    private final Path output;
+    private final Set<Integer> placed = ConcurrentHashMap.newKeySet();
+    private final AtomicLong placedBytes = new AtomicLong();
+    private final long start = System.currentTimeMillis();
+
+    public PartAssembler(PartManifest manifest, Path output) throws IOException {
+        this.manifest = manifest;
+        this.output = output;
+
+        long expectedOffset = 0;
+        for (int i = 0; i < manifest.getParts().size(); i++) {
+            PartManifest.Part part = manifest.getParts().get(i);
+            if (part.getNumber() != i + 1 || part.getOffset() != expectedOffset) {
+                throw new IOException("Manifest of " + manifest.getFileName() + " is inconsistent at part " + (i + 1));
+            }
+            expectedOffset += part.getLength();
+        }
+        if (manifest.getParts().size() != manifest.getPartCount() || expectedOffset != manifest.getTotalSize()) {
+            throw new IOException("Manifest of " + manifest.getFileName() + " lists " + manifest.getParts().size() + " parts of "
+                    + expectedOffset + " bytes, expected " + manifest.getPartCount() + " parts of " + manifest.getTotalSize() + " bytes");
+        }
+
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (manifest.getTotalSize() > 0) {
+                out.write(ByteBuffer.allocate(1), manifest.getTotalSize() - 1);
+            }
+        }
+    }
+
+    public PartManifest.Part partFor(String fileName) {
+        return manifest.partFor(fileName);
+    }
+
+    public int place(Path partFile) throws IOException {
+        PartManifest.Part part = partFor(partFile.getFileName().toString());
+        if (part == null) {
+            throw new IOException(partFile.getFileName() + " is not a part of " + manifest.getFileName());
+        }
+
+        verify(partFile, part);
+        ZipFileMerger.copy(partFile, output, part.getOffset(), part.getLength());
+        if (placed.add(part.getNumber())) {
+            long progress = placedBytes.addAndGet(part.getLength());
+            System.out.println("Placed part " + part.getNumber() + " of " + manifest.getFileName() + " (" + placed.size() + "/" + manifest.getPartCount()
+                    + " parts, " + (manifest.getTotalSize() == 0 ? 100 : progress * 100 / manifest.getTotalSize()) + "%)");
+        }
+        return part.getNumber();
+    }
+
+    // Checks a part file against the length and CRC32C its manifest lists
+    public static void verify(Path partFile, PartManifest.Part part) throws IOException {
+        long size = Files.size(partFile);
+        if (size != part.getLength()) {
+            throw new IOException(partFile.getFileName() + " has " + size + " bytes, the manifest lists " + part.getLength() + " (truncated download?)");
+        }
+        if (part.getCrc32c() != null) {
+            String crc = crc32c(partFile);
+            if (!crc.equals(part.getCrc32c())) {
+                throw new IOException(partFile.getFileName() + " has CRC32C " + crc + ", the manifest lists " + part.getCrc32c());
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return placed.size() == manifest.getPartCount();
+    }
+
+    public List<Integer> missingParts() {
+        List<Integer> missing = new ArrayList<>();
+        for (int number = 1; number <= manifest.getPartCount(); number++) {
+            if (!placed.contains(number)) {
+                missing.add(number);
+            }
+        }
+        return missing;
+    }
+
+    public Path finish() throws IOException {
+        if (!isComplete()) {
+            throw new IOException("Parts " + missingParts() + " of " + manifest.getFileName() + " are missing");
+        }
+        if (manifest.getSha256() != null) {
+            String sha256 = sha256(output);
+            if (!sha256.equals(manifest.getSha256())) {
+                throw new IOException(manifest.getFileName() + " has SHA-256 " + sha256 + " after assembly, the manifest lists " + manifest.getSha256());
+            }
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Assembled and verified " + output + " from " + manifest.getPartCount() + " parts (" + manifest.getTotalSize()
+                + " bytes) in " + millis + " ms (" + (manifest.getTotalSize() * 1000 / millis / (1024 * 1024)) + " MB/s)");
+        return output;
+    }
+
+    public PartManifest getManifest() {
+        return manifest;
+    }
+
+    private static String crc32c(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        read(file, buffer -> crc.update(buffer));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        read(file, digest::update);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void read(Path file, Consumer<ByteBuffer> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) != -1) {
+                consumer.accept(buffer.flip());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.denalistudio.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32C;
+
+// Describes how a backup was cut into parts, attached next to the parts as <name>.manifest.json
+public class PartManifest {
+    public static final String SUFFIX = ".manifest.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private String fileName;
+    private long totalSize;
+    private long partSize;
+    private int partCount;
+    private long createdAt;
+    private String sha256;
+    private List<Part> parts = new ArrayList<>();
+
+    public PartManifest(String fileName, long totalSize, long partSize, int partCount) {
+        this.fileName = fileName;
+        this.totalSize = totalSize;
+        this.partSize = partSize;
+        this.partCount = partCount;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public static PartManifest fromJson(String json) {
+        return GSON.fromJson(json, PartManifest.class);
+    }
+
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    // Reads the whole file once, computing the whole-file SHA-256 together with every part's checksums
+    public static PartManifest describeFile(Path file, long size, long partSize, IntFunction<String> partNames) throws IOException {
+        int partCount = size <= partSize ? 1 : (int) ((size + partSize - 1) / partSize);
+        PartManifest manifest = new PartManifest(file.getFileName().toString(), size, partSize, partCount);
+        MessageDigest whole = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int number = 1; number <= partCount; number++) {
+                long offset = (number - 1) * partSize;
+                long length = Math.min(partSize, size - offset);
+                CRC32C crc = new CRC32C();
+                MessageDigest partDigest = sha256();
+
+                long position = offset;
+                while (position < offset + length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), offset + length - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + file + " at offset " + position);
+                    }
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    whole.update(buffer.duplicate());
+                    partDigest.update(buffer);
+                    position += read;
+                }
+
+                manifest.parts.add(new Part(number, partNames.apply(number), offset, length,
+                        String.format("%08x", crc.getValue()), HexFormat.of().formatHex(partDigest.digest())));
+            }
+        }
+
+        manifest.sha256 = HexFormat.of().formatHex(whole.digest());
+        return manifest;
+    }
+
+    // Reads a byte range once and computes both checksums recorded for a part
+    public static Part describe(Path file, long offset, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        MessageDigest sha256 = sha256();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file + " at offset " + position);
+                }
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                sha256.update(buffer);
+                position += read;
+            }
+        }
+
+        Part part = new Part();
+        part.length = length;
+        part.crc32c = String.format("%08x", crc.getValue());
+        part.sha256 = HexFormat.of().formatHex(sha256.digest());
+        return part;
+    }
+
+    // The part a file holds, by its .partN suffix (or the single part of an unsplit backup), null if none
+    public Part partFor(String name) {
+        int index = name.lastIndexOf(".part");
+        if (index >= 0) {
+            try {
+                int number = Integer.parseInt(name.substring(index + 5));
+                return number >= 1 && number <= parts.size() ? parts.get(number - 1) : null;
+            } catch (NumberFormatException e) {
+                // Not a part name
+            }
+        }
+        if (parts.size() != 1) {
+            return null;
+        }
+        // An unsplit backup keeps its own name, which may arrive URL-encoded
+        Part single = parts.get(0);
+        String expected = single.getName() != null ? single.getName() : fileName;
+        try {
+            return expected.equals(name) || expected.equals(URLDecoder.decode(name, StandardCharsets.UTF_8)) ? single : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getFileName() { return fileName; }
+    public long getTotalSize() { return totalSize; }
+    public long getPartSize() { return partSize; }
+    public int getPartCount() { return partCount; }
+    public long getCreatedAt() { return createdAt; }
+    public String getSha256() { return sha256; }
+    public void setSha256(String sha256) { this.sha256 = sha256; }
+    public List<Part> getParts() { return parts; }
+
+    public static class Part {
+        private int number;
+        private String name;
+        private long offset;
+        private long length;
+        private String crc32c;
+        private String sha256;
+
+        public Part() {
+        }
+
+        public Part(int number, String name, long offset, long length, String crc32c, String sha256) {
+            this.number = number;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.crc32c = crc32c;
+            this.sha256 = sha256;
+        }
+
+        public Part at(int number, String name, long offset) {
+            return new Part(number, name, offset, length, crc32c, sha256);
+        }
+
+        public int getNumber() { return number; }
+        public String getName() { return name; }
+        public long getOffset() { return offset; }
+        public long getLength() { return length; }
+        public String getCrc32c() { return crc32c; }
+        public String getSha256() { return sha256; }
+    }
+}
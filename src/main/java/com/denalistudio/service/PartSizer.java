@@ -0,0 +1,59 @@
+package com.denalistudio.service;
+
+// Picks the part size of each backup: enough parts to keep every upload connection busy, parts small
+// enough that a retry costs at most a few minutes at the measured per-connection rate, and never more
+// than an attachment may hold. Backups up to singleAttachmentSize stay one attachment, which can be
+// downloaded from the task directly
+public class PartSizer {
+    private static final long MB = 1024 * 1024;
+    private static final double ALPHA = 0.2;
+
+    private final long minPartSize;
+    private final long maxPartSize;
+    private final long targetPartSeconds;
+    private final long singleAttachmentSize;
+    private final UploadScheduler uploadScheduler;
+    private volatile double bytesPerSecond;
+
+    public PartSizer(long minPartSize, long maxPartSize, long targetPartSeconds, long singleAttachmentSize, UploadScheduler uploadScheduler) {
+        this.minPartSize = minPartSize;
+        this.maxPartSize = Math.max(minPartSize, maxPartSize);
+        this.targetPartSeconds = targetPartSeconds;
+        this.singleAttachmentSize = Math.min(singleAttachmentSize, this.maxPartSize);
+        this.uploadScheduler = uploadScheduler;
+    }
+
+    // Exponentially weighted average over finished uploads; small ones (manifests) say little about the rate
+    public synchronized void observe(long bytes, long millis) {
+        if (bytes < MB || millis <= 0) {
+            return;
+        }
+        double rate = bytes * 1000.0 / millis;
+        bytesPerSecond = bytesPerSecond == 0 ? rate : ALPHA * rate + (1 - ALPHA) * bytesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long partSizeFor(long fileSize) {
+        if (fileSize <= singleAttachmentSize) {
+            return maxPartSize;
+        }
+
+        long partSize = Math.min(maxPartSize, ceilDiv(fileSize, uploadScheduler.getConcurrency()));
+
+        double rate = bytesPerSecond;
+        if (rate > 0 && targetPartSeconds > 0) {
+            partSize = Math.min(partSize, (long) (rate * targetPartSeconds));
+        }
+
+        // Whole megabytes keep part boundaries readable in the manifest
+        partSize = Math.max(minPartSize, ceilDiv(partSize, MB) * MB);
+        return Math.min(partSize, maxPartSize);
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
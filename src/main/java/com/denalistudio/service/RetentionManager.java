@@ -0,0 +1,246 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Deletes uploaded backups from the backup root by per-domain policy (keep the newest N, keep everything
+// younger than X days) and, once a disk crosses its high-water mark, evicts the oldest uploaded backups
+// until it is back under the low-water mark. Only backups that were fully processed are ever deleted, and
+// the newest backup of every domain is always kept
+public class RetentionManager {
+    private final Path backupRoot;
+    private final Path tempRoot;
+    private final Policy defaultPolicy;
+    private final Map<String, Policy> domainPolicies;
+    private final double highWater;
+    private final double lowWater;
+    private final Predicate<Path> isBackupFile;
+    private final Predicate<Path> isUploaded;
+    private final Predicate<Path> inUse;
+    private final Function<Path, String> domainOf;
+
+    public RetentionManager(Path backupRoot, Path tempRoot, Policy defaultPolicy, Map<String, Policy> domainPolicies,
+                            double highWater, double lowWater, Predicate<Path> isBackupFile, Predicate<Path> isUploaded,
+                            Predicate<Path> inUse, Function<Path, String> domainOf) {
+        this.backupRoot = backupRoot;
+        this.tempRoot = tempRoot;
+        this.defaultPolicy = defaultPolicy;
+        this.domainPolicies = domainPolicies;
+        this.highWater = highWater;
+        this.lowWater = Math.min(lowWater, highWater);
+        this.isBackupFile = isBackupFile;
+        this.isUploaded = isUploaded;
+        this.inUse = inUse;
+        this.domainOf = domainOf;
+    }
+
+    // "example.com=5:30;other.org=10:0" keeps the newest 5 backups or those younger than 30 days of
+    // example.com and the newest 10 of other.org
+    public static Map<String, Policy> parsePolicies(String value) {
+        Map<String, Policy> policies = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return policies;
+        }
+
+        for (String entry : value.split(";")) {
+            String[] parts = entry.trim().split("=");
+            String[] limits = parts.length == 2 ? parts[1].split(":") : new String[0];
+            if (limits.length != 2) {
+                System.err.println("Ignoring invalid retention entry: " + entry);
+                continue;
+            }
+            try {
+                policies.put(parts[0].trim(), new Policy(Integer.parseInt(limits[0].trim()), Integer.parseInt(limits[1].trim())));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid retention entry: " + entry);
+            }
+        }
+        return policies;
+    }
+
+    public synchronized void enforce() {
+        long start = System.currentTimeMillis();
+        Map<String, List<Backup>> byDomain;
+        try {
+            byDomain = listBackups();
+        } catch (IOException e) {
+            System.err.println("Error listing backups for retention: " + e.getMessage());
+            return;
+        }
+
+        int byPolicy = 0;
+        long freed = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<Backup>> entry : byDomain.entrySet()) {
+            Policy policy = domainPolicies.getOrDefault(entry.getKey(), defaultPolicy);
+            List<Backup> backups = entry.getValue();
+            for (int i = 1; i < backups.size(); i++) {
+                Backup backup = backups.get(i);
+                if (policy.expired(i, now - backup.modified) && delete(backup)) {
+                    byPolicy++;
+                    freed += backup.size;
+                }
+            }
+        }
+
+        // Under disk pressure, the oldest uploaded backups go first, whatever their domain
+        int byPressure = 0;
+        if (usage(backupRoot) > highWater) {
+            List<Backup> candidates = new ArrayList<>();
+            for (List<Backup> backups : byDomain.values()) {
+                candidates.addAll(backups.subList(Math.min(1, backups.size()), backups.size()));
+            }
+            candidates.sort(Comparator.comparingLong(backup -> backup.modified));
+
+            for (Backup backup : candidates) {
+                if (usage(backupRoot) <= lowWater) {
+                    break;
+                }
+                if (Files.exists(backup.path) && delete(backup)) {
+                    byPressure++;
+                    freed += backup.size;
+                }
+            }
+            if (usage(backupRoot) > highWater) {
+                System.err.println("Backup volume is still " + Math.round(usage(backupRoot) * 100) + "% full after evicting every uploaded backup that may go");
+            }
+        }
+
+        int tempDirs = cleanTemp();
+        if (byPolicy + byPressure + tempDirs > 0) {
+            System.out.println("Retention finished in " + (System.currentTimeMillis() - start) + " ms: " + byPolicy + " backups expired, "
+                    + byPressure + " evicted for space, " + tempDirs + " stale split directories removed, " + freed + " bytes freed");
+        }
+    }
+
+    // Whether TEMP_DIR can take another bytes without crossing the high-water mark; stale split directories
+    // are removed first when it can't
+    public boolean hasRoomInTemp(long bytes) {
+        if (roomInTemp(bytes)) {
+            return true;
+        }
+        synchronized (this) {
+            cleanTemp();
+        }
+        return roomInTemp(bytes);
+    }
+
+    private boolean roomInTemp(long bytes) {
+        try {
+            FileStore store = Files.getFileStore(tempRoot);
+            long total = store.getTotalSpace();
+            return total <= 0 || store.getUsableSpace() - bytes >= total * (1 - highWater);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private int cleanTemp() {
+        int removed = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempRoot, "split_*")) {
+            for (Path dir : stream) {
+                if (inUse.test(dir)) {
+                    continue;
+                }
+                try (var paths = Files.walk(dir)) {
+                    for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.deleteIfExists(path);
+                    }
+                    removed++;
+                } catch (IOException e) {
+                    System.err.println("Error removing stale split directory " + dir + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error listing " + tempRoot + ": " + e.getMessage());
+        }
+        return removed;
+    }
+
+    // Backups of every domain, newest first
+    private Map<String, List<Backup>> listBackups() throws IOException {
+        Map<String, List<Backup>> byDomain = new HashMap<>();
+        Files.walkFileTree(backupRoot, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String domain = domainOf.apply(file);
+                if (attributes.isRegularFile() && domain != null && isBackupFile.test(file)) {
+                    byDomain.computeIfAbsent(domain, d -> new ArrayList<>())
+                            .add(new Backup(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        for (List<Backup> backups : byDomain.values()) {
+            backups.sort(Comparator.comparingLong((Backup backup) -> backup.modified).reversed());
+        }
+        return byDomain;
+    }
+
+    private boolean delete(Backup backup) {
+        if (inUse.test(backup.path) || !isUploaded.test(backup.path)) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(backup.path);
+            System.out.println("Retention deleted " + backup.path + " (" + backup.size + " bytes)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error deleting " + backup.path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static double usage(Path path) {
+        try {
+            FileStore store = Files.getFileStore(path);
+            long total = store.getTotalSpace();
+            return total <= 0 ? 0 : 1 - (double) store.getUsableSpace() / total;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // 0 disables a limit; with both set a backup goes once it is outside the newest keepLast and older
+    // than keepDays
+    public static class Policy {
+        private final int keepLast;
+        private final int keepDays;
+
+        public Policy(int keepLast, int keepDays) {
+            this.keepLast = keepLast;
+            this.keepDays = keepDays;
+        }
+
+        private boolean expired(int newerBackups, long ageMillis) {
+            if (keepLast <= 0 && keepDays <= 0) {
+                return false;
+            }
+            boolean beyondCount = keepLast <= 0 || newerBackups >= keepLast;
+            boolean beyondAge = keepDays <= 0 || ageMillis > keepDays * 86_400_000L;
+            return beyondCount && beyondAge;
+        }
+    }
+
+    private static class Backup {
+        private final Path path;
+        private final long size;
+        private final long modified;
+
+        private Backup(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
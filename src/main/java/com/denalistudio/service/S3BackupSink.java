@@ -0,0 +1,252 @@
+package com.denalistudio.service;
+
+import okhttp3.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stores every backup as one object of an S3-compatible bucket (AWS, MinIO, Ceph, ...), using path-style
+// URLs and Signature Version 4. Split backups become multipart uploads whose parts are sent concurrently;
+// the upload id is journaled with the parts, so a resumed job continues the same upload
+public class S3BackupSink implements BackupSink {
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String EMPTY_PAYLOAD = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>(.*?)</UploadId>");
+
+    private final OkHttpClient client;
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+
+    public S3BackupSink(OkHttpClient client, String endpoint, String region, String bucket, String prefix, String accessKey, String secretKey) {
+        this.client = client;
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = prefix == null || prefix.isBlank() ? "" : prefix.replaceAll("^/+|/+$", "") + "/";
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    @Override
+    public String getName() {
+        return "s3";
+    }
+
+    @Override
+    public void begin(BackupJob job) throws IOException {
+        if (!job.isSplit() || job.getUploadId() != null) {
+            return;
+        }
+        String response = execute("POST", key(job), "uploads=", RequestBody.create(new byte[0], null), EMPTY_PAYLOAD);
+        Matcher matcher = UPLOAD_ID.matcher(response);
+        if (!matcher.find()) {
+            throw new IOException("No upload id in the response to creating a multipart upload: " + response);
+        }
+        job.setUploadId(matcher.group(1));
+        System.out.println("Started multipart upload of " + key(job) + " (" + job.partCount() + " parts)");
+    }
+
+    // The part checksums computed by the hashing pass sign the payload; without them it goes unsigned
+    @Override
+    public String putPart(BackupJob job, int partNumber, String name, RequestBody body) throws IOException {
+        PartManifest.Part planned = job.plannedPart(partNumber);
+        String payload = planned != null && planned.getSha256() != null ? planned.getSha256() : UNSIGNED_PAYLOAD;
+        if (!job.isSplit()) {
+            return put(key(job), "", body, job.getContentHash() != null ? job.getContentHash() : payload);
+        }
+        String query = "partNumber=" + partNumber + "&uploadId=" + encode(job.getUploadId(), false);
+        return put(key(job), query, body, payload);
+    }
+
+    @Override
+    public String putObject(BackupJob job, String name, RequestBody body) throws IOException {
+        return put(directory(job) + name, "", body, UNSIGNED_PAYLOAD);
+    }
+
+    @Override
+    public void complete(BackupJob job) throws IOException {
+        if (!job.isSplit()) {
+            return;
+        }
+
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int partNumber = 1; partNumber <= job.partCount(); partNumber++) {
+            String etag = job.getAttachmentIds().get(job.partName(partNumber));
+            if (etag == null) {
+                throw new IOException("No ETag recorded for part " + partNumber + " of " + key(job));
+            }
+            xml.append("<Part><PartNumber>").append(partNumber).append("</PartNumber><ETag>")
+                    .append(etag.replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+
+        byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+        String query = "uploadId=" + encode(job.getUploadId(), false);
+        try {
+            String response = execute("POST", key(job), query, RequestBody.create(content, MediaType.parse("application/xml")), hex(sha256(content)));
+            // A failed completion may still answer 200, with the error in the body
+            if (response.contains("<Error>")) {
+                throw new IOException("Completing the multipart upload of " + key(job) + " failed: " + response);
+            }
+        } catch (IOException e) {
+            // Completed before a crash, the upload id is gone but the object is there. Only an object whose
+            // ETag derives from exactly these parts is this upload; an equal size proves nothing
+            String expected = multipartEtag(job);
+            if (expected != null && expected.equals(objectEtag(key(job)))) {
+                System.out.println("Multipart upload of " + key(job) + " was already completed");
+                return;
+            }
+            throw e;
+        }
+        System.out.println("Completed multipart upload of " + key(job));
+    }
+
+    @Override
+    public String location(BackupJob job) {
+        return endpoint + "/" + encode(bucket, false) + "/" + encode(key(job), true);
+    }
+
+    @Override
+    public boolean isExternal() {
+        return true;
+    }
+
+    private String key(BackupJob job) {
+        return directory(job) + job.getFilePath().getFileName();
+    }
+
+    private String directory(BackupJob job) {
+        return prefix + job.getDomain() + "/";
+    }
+
+    private String objectEtag(String key) {
+        try (Response response = client.newCall(signed("HEAD", key, "", null, EMPTY_PAYLOAD)).execute()) {
+            return response.isSuccessful() ? response.header("ETag") : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The ETag S3 gives a completed multipart upload: the MD5 of the parts' binary MD5s, then "-" and the
+    // part count. Null when a part ETag is no plain MD5 (e.g. SSE-KMS), then nothing can be matched
+    private String multipartEtag(BackupJob job) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            for (int partNumber = 1; partNumber <= job.partCount(); partNumber++) {
+                String etag = job.getAttachmentIds().get(job.partName(partNumber));
+                String hex = etag == null ? "" : etag.replace("\"", "");
+                if (!hex.matches("[0-9a-fA-F]{32}")) {
+                    return null;
+                }
+                md5.update(HexFormat.of().parseHex(hex));
+            }
+            return "\"" + hex(md5.digest()) + "-" + job.partCount() + "\"";
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns the ETag, which multipart uploads need to complete; its quotes are part of it
+    private String put(String key, String query, RequestBody body, String payloadHash) throws IOException {
+        try (Response response = client.newCall(signed("PUT", key, query, body, payloadHash)).execute()) {
+            String responseBody = response.body() != null ? response.body().string() : "";
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response + ": " + responseBody);
+            }
+            return response.header("ETag");
+        }
+    }
+
+    private String execute(String method, String key, String query, RequestBody body, String payloadHash) throws IOException {
+        try (Response response = client.newCall(signed(method, key, query, body, payloadHash)).execute()) {
+            String responseBody = response.body() != null ? response.body().string() : "";
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected code " + response + ": " + responseBody);
+            }
+            return responseBody;
+        }
+    }
+
+    private Request signed(String method, String key, String query, RequestBody body, String payloadHash) {
+        String path = "/" + encode(bucket, false) + "/" + encode(key, true);
+        HttpUrl url = HttpUrl.get(endpoint + path + (query.isEmpty() ? "" : "?" + query));
+        String host = url.port() == HttpUrl.defaultPort(url.scheme()) ? url.host() : url.host() + ":" + url.port();
+        String amzDate = AMZ_DATE.format(Instant.now());
+        String date = amzDate.substring(0, 8);
+
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = method + "\n" + path + "\n" + query + "\n"
+                + "host:" + host + "\n" + "x-amz-content-sha256:" + payloadHash + "\n" + "x-amz-date:" + amzDate + "\n\n"
+                + signedHeaders + "\n" + payloadHash;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        return new Request.Builder()
+                .url(url)
+                .method(method, body)
+                .addHeader("x-amz-content-sha256", payloadHash)
+                .addHeader("x-amz-date", amzDate)
+                .addHeader("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature)
+                .build();
+    }
+
+    // RFC 3986 encoding as SigV4 expects it: everything but unreserved characters (and slashes in keys)
+    private static String encode(String value, boolean keepSlashes) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,63 @@
+package com.denalistudio.service;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+// Meters a request body through the BandwidthLimiter in chunks, whatever the wrapped body writes with
+public class ThrottledRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private final BandwidthLimiter limiter;
+    private final String domain;
+
+    public ThrottledRequestBody(RequestBody delegate, BandwidthLimiter limiter, String domain) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.domain = domain;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        limiter.register(domain);
+        try {
+            BufferedSink throttled = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    while (byteCount > 0) {
+                        long chunk = Math.min(byteCount, BandwidthLimiter.CHUNK_SIZE);
+                        try {
+                            limiter.acquire(domain, chunk);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+                        }
+                        super.write(source, chunk);
+                        byteCount -= chunk;
+                    }
+                }
+            });
+            delegate.writeTo(throttled);
+
+            // Push what is still buffered without closing the underlying sink, which OkHttp owns
+            throttled.emit();
+        } finally {
+            limiter.unregister(domain);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.denalistudio.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs part uploads of every backup on virtual threads while capping how many are on the wire at once.
+// The cap adapts to how ClickUp responds (see AdaptiveConcurrencyLimit). Waiting uploads get free slots
+// by highest response ratio like in BackupScheduler, with the size of their backup as the expected work:
+// the parts of a small backup don't queue behind every part of a huge one, and those of a huge one still
+// get their turn under sustained load
+public class UploadScheduler {
+    private final ExecutorService executor = VirtualThreads.newExecutor("backup-upload");
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final AdaptiveConcurrencyLimit limit;
+    private final long estimatedBytesPerSecond;
+    // The ticket the current upload got its slot with, unset while it holds none
+    private final ThreadLocal<Ticket> held = new ThreadLocal<>();
+    private int active;
+    private long sequence;
+
+    public UploadScheduler(int initialConcurrency, int minConcurrency, int maxConcurrency, long estimatedBytesPerSecond) {
+        this.limit = new AdaptiveConcurrencyLimit(initialConcurrency, minConcurrency, maxConcurrency);
+        this.estimatedBytesPerSecond = Math.max(1, estimatedBytesPerSecond);
+    }
+
+    // Feedback from every upload attempt, including retried ones
+    public void onSuccess(long bytes, long millis) {
+        lock.lock();
+        try {
+            if (limit.onSuccess(bytes, millis, active)) {
+                System.out.println("Upload concurrency limit raised to " + limit.current());
+                signalNext();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onFailure() {
+        lock.lock();
+        try {
+            if (limit.onFailure()) {
+                System.out.println("Upload concurrency limit lowered to " + limit.current());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // size is the expected work behind the upload, normally the size of its backup
+    public CompletableFuture<Void> submit(long size, Runnable upload) {
+        long submittedAt = System.currentTimeMillis();
+        return CompletableFuture.runAsync(() -> {
+            held.set(acquire(size, submittedAt));
+            try {
+                upload.run();
+            } finally {
+                if (held.get() != null) {
+                    held.remove();
+                    release();
+                }
+            }
+        }, executor);
+    }
+
+    // Backs off without holding a slot, so a failing upload doesn't keep every other one off the wire while
+    // the limit is low; the slot is taken again in turn, still aged from the original submit. Outside an
+    // upload it simply sleeps
+    public void sleepOutsideSlot(long millis) throws InterruptedException {
+        Ticket ticket = held.get();
+        if (ticket == null) {
+            Thread.sleep(millis);
+            return;
+        }
+
+        held.remove();
+        release();
+        Thread.sleep(millis);
+        held.set(acquire(ticket.size, ticket.submittedAt));
+    }
+
+    private Ticket acquire(long size, long submittedAt) {
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(size, submittedAt, sequence++, lock.newCondition());
+            waiting.add(ticket);
+            try {
+                while (active >= limit.current() || next() != ticket) {
+                    signalNext();
+                    ticket.ready.await();
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(ticket);
+                signalNext();
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for an upload slot");
+            }
+            waiting.remove(ticket);
+            active++;
+            signalNext();
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            active--;
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wakes only the upload that is first in line, and only when there is a slot for it
+    private void signalNext() {
+        Ticket head = next();
+        if (head != null && active < limit.current()) {
+            head.ready.signal();
+        }
+    }
+
+    // Highest response ratio first, then in submit order. Ratios grow while tickets wait, so the head is
+    // worked out again on every signal; only parts of running backups wait here, so the list stays short
+    private Ticket next() {
+        long now = System.currentTimeMillis();
+        Ticket best = null;
+        double bestRatio = 0;
+        for (Ticket ticket : waiting) {
+            double ratio = responseRatio(ticket, now);
+            if (best == null || ratio > bestRatio || (ratio == bestRatio && ticket.sequence < best.sequence)) {
+                best = ticket;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
+    // (waiting + expected service) / expected service, as in BackupScheduler
+    private double responseRatio(Ticket ticket, long now) {
+        double service = Math.max(1.0, (double) ticket.size / estimatedBytesPerSecond);
+        double waited = (now - ticket.submittedAt) / 1000.0;
+        return (waited + service) / service;
+    }
+
+    public int getConcurrency() {
+        lock.lock();
+        try {
+            return limit.current();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int activeUploads() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int waitingUploads() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class Ticket {
+        private final long size;
+        private final long submittedAt;
+        private final long sequence;
+        private final Condition ready;
+
+        private Ticket(long size, long submittedAt, long sequence, Condition ready) {
+            this.size = size;
+            this.submittedAt = submittedAt;
+            this.sequence = sequence;
+            this.ready = ready;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+// A backup presented as one file while it is still in parts on disk: its manifest gives every part's
+// offset and length, so any byte range maps to slices of the parts and nothing is merged. A part can
+// be read once it is downloaded and checked, so readers can start before the last part arrives
+public class VirtualBackupFile {
+    private final PartManifest manifest;
+    private final List<CompletableFuture<Path>> parts = new ArrayList<>();
+
+    public VirtualBackupFile(PartManifest manifest) {
+        this.manifest = manifest;
+        for (int i = 0; i < manifest.getPartCount(); i++) {
+            parts.add(new CompletableFuture<>());
+        }
+    }
+
+    // Parts already in partsDir under their manifest names, for a backup whose downloads are over. Each
+    // part is checked against its length and CRC32C on the executor again before it can be read
+    public static VirtualBackupFile fromDirectory(PartManifest manifest, Path partsDir, Executor executor) {
+        VirtualBackupFile file = new VirtualBackupFile(manifest);
+        for (PartManifest.Part part : manifest.getParts()) {
+            executor.execute(() -> {
+                Path partFile = partsDir.resolve(part.getName());
+                try {
+                    if (!Files.isRegularFile(partFile)) {
+                        throw new IOException("Part " + part.getNumber() + " of " + manifest.getFileName() + " is not in " + partsDir);
+                    }
+                    PartAssembler.verify(partFile, part);
+                    file.partReady(part.getNumber(), partFile);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error checking " + partFile + ": " + e.getMessage());
+                    file.partFailed(part.getNumber(), e);
+                }
+            });
+        }
+        return file;
+    }
+
+    public void partReady(int partNumber, Path partFile) {
+        parts.get(partNumber - 1).complete(partFile);
+    }
+
+    public void partFailed(int partNumber, Throwable cause) {
+        parts.get(partNumber - 1).completeExceptionally(cause);
+    }
+
+    public long size() {
+        return manifest.getTotalSize();
+    }
+
+    public PartManifest getManifest() {
+        return manifest;
+    }
+
+    // The part holding [start, end] when the range doesn't cross a part boundary, otherwise null
+    public PartManifest.Part partContaining(long start, long end) {
+        PartManifest.Part part = partAt(start);
+        return end < part.getOffset() + part.getLength() ? part : null;
+    }
+
+    // The part file once it is downloaded and checked, null while it is still on its way
+    public Path readyPart(int partNumber) throws IOException {
+        CompletableFuture<Path> part = parts.get(partNumber - 1);
+        if (!part.isDone()) {
+            return null;
+        }
+        try {
+            return part.join();
+        } catch (CompletionException e) {
+            throw new IOException("Part " + partNumber + " of " + manifest.getFileName() + " is unavailable: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // The first part of [start, end] that is not ready yet, or 0 when the whole range can be read
+    public int missingPart(long start, long end) throws IOException {
+        long position = start;
+        while (position <= end) {
+            PartManifest.Part part = partAt(position);
+            if (readyPart(part.getNumber()) == null) {
+                return part.getNumber();
+            }
+            position = part.getOffset() + part.getLength();
+        }
+        return 0;
+    }
+
+    // Writes bytes start to end (inclusive) of the logical file, slice by slice with transferTo. Every
+    // part of the range must be ready, see missingPart
+    public void transferTo(long start, long end, WritableByteChannel target) throws IOException {
+        long position = start;
+        while (position <= end) {
+            PartManifest.Part part = partAt(position);
+            long partEnd = Math.min(end, part.getOffset() + part.getLength() - 1);
+            Path partFile = readyPart(part.getNumber());
+            if (partFile == null) {
+                throw new IOException("Part " + part.getNumber() + " of " + manifest.getFileName() + " has not been downloaded yet");
+            }
+
+            try (FileChannel in = FileChannel.open(partFile, StandardOpenOption.READ)) {
+                long from = position - part.getOffset();
+                long remaining = partEnd - position + 1;
+                while (remaining > 0) {
+                    long transferred = in.transferTo(from, remaining, target);
+                    if (transferred <= 0 && from >= in.size()) {
+                        throw new IOException(partFile.getFileName() + " ended at " + from + " of " + part.getLength() + " bytes");
+                    }
+                    from += transferred;
+                    remaining -= transferred;
+                }
+            }
+            position = partEnd + 1;
+        }
+    }
+
+    // All parts but the last are partSize long, so the first guess is normally right; otherwise the
+    // contiguous offsets are searched
+    private PartManifest.Part partAt(long position) {
+        List<PartManifest.Part> list = manifest.getParts();
+        if (manifest.getPartSize() > 0) {
+            int index = (int) Math.min(list.size() - 1, position / manifest.getPartSize());
+            PartManifest.Part part = list.get(index);
+            if (position >= part.getOffset() && position < part.getOffset() + part.getLength()) {
+                return part;
+            }
+        }
+        int low = 0;
+        int high = list.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (list.get(middle).getOffset() <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return list.get(low);
+    }
+}
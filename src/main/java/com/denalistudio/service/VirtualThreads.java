@@ -0,0 +1,25 @@
+package com.denalistudio.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    // Thread-per-task executor on virtual threads. The build still targets Java 17, so the Java 21 API is
+    // looked up at runtime and an unbounded pool of daemon platform threads is used on older JVMs.
+    public static ExecutorService newExecutor(String namePrefix) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Watch keys of every registered directory, so subtrees that are already watched are not walked again,
+// removed directories give their inotify watch back and registration stops short of the kernel limit
+public class WatchedDirectoryRegistry {
+    private static final Path INOTIFY_LIMIT = Paths.get("/proc/sys/fs/inotify/max_user_watches");
+
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> keys = new ConcurrentHashMap<>();
+    private final int maxWatches;
+    private volatile int skipped;
+    private volatile boolean limitReported;
+
+    public WatchedDirectoryRegistry(WatchService watchService, int maxWatches) {
+        this.watchService = watchService;
+        this.maxWatches = maxWatches;
+    }
+
+    // The per-user inotify limit, or -1 where there is none to read
+    public static int inotifyLimit() {
+        try {
+            return Integer.parseInt(Files.readString(INOTIFY_LIMIT).trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Registers start and every directory below it that is not watched yet and returns the newly registered
+    // ones, parents before children. Watched subtrees are skipped instead of walked
+    public List<Path> registerTree(Path start) throws IOException {
+        List<Path> registered = new ArrayList<>();
+
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (keys.containsKey(dir)) {
+                    return dir.equals(start) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+                if (keys.size() >= maxWatches) {
+                    limitReached(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                try {
+                    keys.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+                    registered.add(dir);
+                    return FileVisitResult.CONTINUE;
+                } catch (IOException e) {
+                    // Linux reports an exhausted max_user_watches as an IOException on register
+                    if (String.valueOf(e.getMessage()).contains("limit")) {
+                        limitReached(dir);
+                    } else {
+                        System.err.println("Error registering " + dir + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Error visiting " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return registered;
+    }
+
+    // Cancels the watches of dir and every directory below it, returns how many were cancelled
+    public int unregisterTree(Path dir) {
+        int cancelled = 0;
+        for (Map.Entry<Path, WatchKey> entry : keys.entrySet()) {
+            if (entry.getKey().startsWith(dir) && keys.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cancel();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    // The kernel dropped the watch (directory removed or unmounted), so only the bookkeeping is left
+    public void invalidated(WatchKey key) {
+        keys.remove((Path) key.watchable(), key);
+    }
+
+    public boolean isRegistered(Path dir) {
+        return keys.containsKey(dir);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public int getMaxWatches() {
+        return maxWatches;
+    }
+
+    public int skippedCount() {
+        return skipped;
+    }
+
+    private void limitReached(Path dir) {
+        skipped++;
+        if (!limitReported) {
+            limitReported = true;
+            System.err.println("Watch limit of " + maxWatches + " directories reached at " + dir + " with " + keys.size()
+                    + " registered. Directories beyond it are only picked up by reconciliation passes.");
+        }
+    }
+}
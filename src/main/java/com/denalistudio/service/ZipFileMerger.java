@@ -1,55 +1,186 @@
 package com.denalistudio.service;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ZipFileMerger {
-    public static void mergeFile(Path firstPartPath) throws IOException {
+    // Parts copied at once; more only pay off on storage with deep queues (NVMe, RAID)
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public static Path mergeFile(Path firstPartPath) throws IOException {
         // Get parent directory and base filename
         Path parentDir = firstPartPath.getParent();
         String originalFileName = getBaseName(firstPartPath.getFileName().toString());
 
-        // Find all parts and sort them numerically
-        List<Path> parts = Files.list(parentDir)
-                .filter(p -> p.getFileName().toString().startsWith(originalFileName + ".part"))
-                .sorted(Comparator.comparingInt(p -> extractPartNumber(p.getFileName().toString())))
-                .collect(Collectors.toList());
+        // Find all parts; the part number is parsed once per file, not on every comparison
+        List<NumberedPart> numbered = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parentDir, globEscape(originalFileName) + ".part*")) {
+            for (Path part : stream) {
+                int partNumber = extractPartNumber(part.getFileName().toString());
+                if (partNumber > 0) {
+                    numbered.add(new NumberedPart(partNumber, part));
+                }
+            }
+        }
+        numbered.sort(Comparator.comparingInt(part -> part.number));
+
+        List<Path> parts = new ArrayList<>(numbered.size());
+        for (NumberedPart part : numbered) {
+            parts.add(part.path);
+        }
 
-        // Create merged output file
         Path mergedFile = parentDir.resolve(originalFileName);
-        try (OutputStream out = Files.newOutputStream(mergedFile,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING)) {
+        Path manifestFile = parentDir.resolve(originalFileName + PartManifest.SUFFIX);
+        if (Files.exists(manifestFile)) {
+            return mergeFiles(PartManifest.fromJson(Files.readString(manifestFile)), parts, mergedFile, DEFAULT_THREADS);
+        }
 
-            // Concatenate all parts
+        // Parts split before manifests existed can only be concatenated in name order
+        mergeFiles(parts, mergedFile, DEFAULT_THREADS);
+        return mergedFile;
+    }
+
+    // Places the parts where the manifest says, checking each one and the merged file against it
+    public static Path mergeFiles(PartManifest manifest, List<Path> parts, Path mergedFile, int threads) throws IOException {
+        PartAssembler assembler = new PartAssembler(manifest, mergedFile);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, parts.size())));
+        try {
+            List<Future<Integer>> placements = new ArrayList<>();
             for (Path part : parts) {
-                try (InputStream in = Files.newInputStream(part)) {
-                    byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
-                    int bytesRead;
-                    while ((bytesRead = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, bytesRead);
-                    }
-                }
+                placements.add(executor.submit(() -> assembler.place(part)));
+            }
+            for (Future<Integer> placement : placements) {
+                placement.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Error merging into " + mergedFile, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging into " + mergedFile, e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return assembler.finish();
+    }
+
+    // The output gets its final length first, then every part is copied with transferTo to the offset
+    // that the sizes of the parts before it add up to, up to threads parts at once
+    public static void mergeFiles(List<Path> parts, Path mergedFile, int threads) throws IOException {
+        long[] offsets = new long[parts.size()];
+        long[] lengths = new long[parts.size()];
+        long total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            offsets[i] = total;
+            lengths[i] = Files.size(parts.get(i));
+            total += lengths[i];
+        }
+
+        long start = System.currentTimeMillis();
+        try (FileChannel out = FileChannel.open(mergedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (total > 0) {
+                out.write(ByteBuffer.allocate(1), total - 1);
             }
         }
 
-        System.out.println("Successfully merged " + parts.size() + " parts into: " + mergedFile);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, parts.size())));
+        AtomicLong merged = new AtomicLong();
+        AtomicInteger done = new AtomicInteger();
+        long size = total;
+        try {
+            List<Future<?>> copies = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                Path part = parts.get(i);
+                long offset = offsets[i];
+                long length = lengths[i];
+                copies.add(executor.submit(() -> {
+                    copy(part, mergedFile, offset, length);
+                    long progress = merged.addAndGet(length);
+                    System.out.println("Merged " + part.getFileName() + " (" + done.incrementAndGet() + "/" + parts.size() + " parts, "
+                            + (size == 0 ? 100 : progress * 100 / size) + "%)");
+                    return null;
+                }));
+            }
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Error merging into " + mergedFile, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging into " + mergedFile, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Successfully merged " + parts.size() + " parts (" + total + " bytes) into: " + mergedFile + " in " + millis
+                + " ms (" + (total * 1000 / millis / (1024 * 1024)) + " MB/s)");
+    }
+
+    // Every copy has its own channel on the output, so channel positions are never shared
+    static void copy(Path part, Path mergedFile, long offset, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(mergedFile, StandardOpenOption.WRITE)) {
+            out.position(offset);
+            long copied = 0;
+            while (copied < length) {
+                long transferred = in.transferTo(copied, length - copied, out);
+                if (transferred <= 0 && copied >= in.size()) {
+                    throw new EOFException(part + " ended after " + copied + " of " + length + " bytes");
+                }
+                copied += transferred;
+            }
+        }
     }
 
     public static String getBaseName(String partName) {
         return partName.replaceAll("\\.part\\d+$", "");
     }
 
+    // -1 for names that don't end in .partN
     private static int extractPartNumber(String filename) {
-        return Integer.parseInt(filename.replaceAll(".*\\.part(\\d+)$", "$1"));
+        int index = filename.lastIndexOf(".part");
+        if (index < 0 || index + 5 == filename.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(filename.substring(index + 5));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String globEscape(String value) {
+        return value.replaceAll("([\\\\*?\\[\\]{}])", "\\\\$1");
+    }
+
+    private static class NumberedPart {
+        private final int number;
+        private final Path path;
+
+        private NumberedPart(int number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
     }
 
     public static void main(String[] args) {
@@ -65,4 +196,4 @@ public class ZipFileMerger {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
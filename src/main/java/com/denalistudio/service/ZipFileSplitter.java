@@ -1,35 +1,125 @@
 package com.denalistudio.service;
 
-import java.io.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class ZipFileSplitter {
-    public static void splitFile(Path source, Path outputDir, long partSize) throws IOException {
-        if (!Files.exists(outputDir)) {
-            Files.createDirectories(outputDir);
+    // Parts written at once; more only pay off on storage with deep queues (NVMe, RAID)
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public static List<Path> splitFile(Path source, Path outputDir, long partSize) throws IOException {
+        try {
+            return splitFile(source, outputDir, partSize, DEFAULT_THREADS, false, describe(source, partSize), null, part -> { });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting " + source, e);
         }
+    }
+
+    public static List<Path> splitFile(Path source, Path outputDir, long partSize, Semaphore window, Consumer<Path> onPart) throws IOException, InterruptedException {
+        return splitFile(source, outputDir, partSize, DEFAULT_THREADS, false, describe(source, partSize), window, onPart);
+    }
 
-        try (InputStream inputStream = Files.newInputStream(source)) {
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            int partNumber = 1;
+    // Checksums the whole source for its manifest; callers that have already read it pass what they computed
+    public static PartManifest describe(Path source, long partSize) throws IOException {
+        String fileName = source.getFileName().toString();
+        return PartManifest.describeFile(source, Files.size(source), partSize, number -> fileName + ".part" + number);
+    }
 
-            while (true) {
-                // Create the part file in the specified output directory
+    // Every part is cut at its offset straight from the source with transferTo, so the bytes never pass
+    // through the Java heap, and up to threads parts are written at once. Preallocation sets the length
+    // of each part before it is filled. When a window is given, a permit is taken before each part is
+    // written, so at most that many parts sit on disk until the consumer releases them. onPart gets each
+    // part as soon as it is complete, one call at a time, though not necessarily in part order.
+    // The manifest, computed by the caller for the same part size, is written as <name>.manifest.json before
+    // the first part, so a consumer can place parts as they come; the source is not read for it again
+    public static List<Path> splitFile(Path source, Path outputDir, long partSize, int threads, boolean preallocate, PartManifest manifest,
+                                       Semaphore window, Consumer<Path> onPart) throws IOException, InterruptedException {
+        if (manifest == null || manifest.getPartSize() != partSize || manifest.getSha256() == null) {
+            throw new IllegalArgumentException("A manifest of " + source.getFileName() + " for " + partSize + " byte parts is required");
+        }
+        Files.createDirectories(outputDir);
+        writeManifest(outputDir, manifest);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Object callbackLock = new Object();
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            int partCount = (int) ((size + partSize - 1) / partSize);
+            List<Path> parts = new ArrayList<>(partCount);
+            List<Future<?>> writes = new ArrayList<>(partCount);
+
+            for (int partNumber = 1; partNumber <= partCount && failure.get() == null; partNumber++) {
                 Path partFile = outputDir.resolve(source.getFileName().toString() + ".part" + partNumber);
-                try (OutputStream outputStream = Files.newOutputStream(partFile)) {
-                    long bytesWritten = 0;
-                    while (bytesWritten < partSize && (bytesRead = inputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                        bytesWritten += bytesRead;
+                long offset = (partNumber - 1) * partSize;
+                long length = Math.min(partSize, size - offset);
+                parts.add(partFile);
+
+                if (window != null) {
+                    window.acquire();
+                }
+                writes.add(executor.submit(() -> {
+                    try {
+                        copy(in, offset, length, partFile, preallocate);
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        if (window != null) {
+                            window.release();
+                        }
+                        throw e;
                     }
-                    if (bytesWritten == 0) {
-                        Files.delete(partFile);
-                        break;
+                    synchronized (callbackLock) {
+                        onPart.accept(partFile);
                     }
+                    return null;
+                }));
+            }
+
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            return parts;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Error splitting " + source, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static Path writeManifest(Path outputDir, PartManifest manifest) throws IOException {
+        Path manifestFile = outputDir.resolve(manifest.getFileName() + PartManifest.SUFFIX);
+        Files.writeString(manifestFile, manifest.toJson());
+        return manifestFile;
+    }
+
+    private static void copy(FileChannel in, long offset, long length, Path partFile, boolean preallocate) throws IOException {
+        try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (preallocate && length > 0) {
+                // A positional write leaves the channel position at 0
+                out.write(ByteBuffer.allocate(1), length - 1);
+            }
+
+            long copied = 0;
+            while (copied < length) {
+                long transferred = in.transferTo(offset + copied, length - copied, out);
+                if (transferred <= 0 && offset + copied >= in.size()) {
+                    throw new EOFException("Source ended at " + (offset + copied) + " while writing " + partFile);
                 }
-                partNumber++;
+                copied += transferred;
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,235 @@
+package com.denalistudio.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Cheap structural check of a ZIP archive before it is uploaded: end of central directory (and ZIP64)
+// records, central directory and the last local header are read with a few positional reads, so a
+// truncated upload is caught without reading the archive. CRCs of all entries can be verified as well
+public class ZipIntegrityChecker {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final int crcThreads;
+
+    // crcThreads of 0 skips the CRC verification
+    public ZipIntegrityChecker(int crcThreads) {
+        this.crcThreads = crcThreads;
+    }
+
+    // Returns null for a sound archive, otherwise why it is broken
+    public String check(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            String problem = checkStructure(channel);
+            if (problem == null && crcThreads > 0) {
+                problem = checkCrcs(file);
+            }
+            return problem;
+        } catch (IOException e) {
+            return "unreadable: " + e.getMessage();
+        }
+    }
+
+    private String checkStructure(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < EOCD_SIZE) {
+            return "too small to be a ZIP archive (" + size + " bytes)";
+        }
+
+        // The EOCD record sits at the very end, followed only by an archive comment of up to 64 KB
+        int tailLength = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+        ByteBuffer tail = read(channel, size - tailLength, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return "no end of central directory record, the archive is probably truncated";
+        }
+
+        long eocdPosition = size - tailLength + eocd;
+        long entries = tail.getShort(eocd + 10) & 0xFFFF;
+        long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        long directoryEnd = eocdPosition;
+
+        if (entries == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            if (eocdPosition < 20) {
+                return "ZIP64 end of central directory locator is missing";
+            }
+            ByteBuffer locator = read(channel, eocdPosition - 20, 20);
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                return "ZIP64 end of central directory locator is missing";
+            }
+            long zip64Position = locator.getLong(8);
+            if (zip64Position < 0 || zip64Position + 56 > eocdPosition - 20) {
+                return "ZIP64 end of central directory record points outside the archive";
+            }
+            ByteBuffer zip64 = read(channel, zip64Position, 56);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                return "ZIP64 end of central directory record is corrupt";
+            }
+            entries = zip64.getLong(32);
+            directorySize = zip64.getLong(40);
+            directoryOffset = zip64.getLong(48);
+            directoryEnd = zip64Position;
+        }
+
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > directoryEnd) {
+            return "central directory (offset " + directoryOffset + ", size " + directorySize + ") lies outside the archive";
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            return "central directory of " + directorySize + " bytes is too large";
+        }
+
+        return checkCentralDirectory(channel, read(channel, directoryOffset, (int) directorySize), entries, directoryOffset);
+    }
+
+    private String checkCentralDirectory(FileChannel channel, ByteBuffer directory, long entries, long directoryOffset) throws IOException {
+        long lastLocalOffset = -1;
+        long lastCompressedSize = 0;
+        int position = 0;
+        long count = 0;
+
+        while (position + 46 <= directory.limit()) {
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                return "central directory entry " + count + " is corrupt";
+            }
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+            int next = position + 46 + nameLength + extraLength + commentLength;
+            if (next > directory.limit()) {
+                return "central directory entry " + count + " runs past the directory";
+            }
+
+            // ZIP64 extended information: only the fields saturated in the header are present, in this order
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int length = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localOffset == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        localOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+
+            if (localOffset + 30 + compressedSize > directoryOffset) {
+                return "data of central directory entry " + count + " lies beyond the central directory";
+            }
+            if (localOffset > lastLocalOffset) {
+                lastLocalOffset = localOffset;
+                lastCompressedSize = compressedSize;
+            }
+            position = next;
+            count++;
+        }
+
+        if (count != entries) {
+            return "central directory lists " + count + " entries, the end record " + entries;
+        }
+
+        // The entry stored last is the one a truncated upload loses first
+        if (lastLocalOffset >= 0) {
+            ByteBuffer local = read(channel, lastLocalOffset, 30);
+            if (local.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                return "local header at offset " + lastLocalOffset + " is corrupt";
+            }
+            long dataEnd = lastLocalOffset + 30 + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF) + lastCompressedSize;
+            if (dataEnd > directoryOffset) {
+                return "last entry ends at " + dataEnd + ", after the central directory starts at " + directoryOffset;
+            }
+        }
+        return null;
+    }
+
+    // Inflates every entry and compares its CRC-32, with the entries spread over several threads
+    private String checkCrcs(Path file) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(crcThreads);
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            List<? extends ZipEntry> entries = zip.stream().toList();
+            List<Future<String>> results = new ArrayList<>();
+            for (int thread = 0; thread < crcThreads; thread++) {
+                int first = thread;
+                results.add(executor.submit(() -> {
+                    byte[] buffer = new byte[64 * 1024];
+                    for (int i = first; i < entries.size(); i += crcThreads) {
+                        ZipEntry entry = entries.get(i);
+                        if (entry.isDirectory()) {
+                            continue;
+                        }
+                        CRC32 crc = new CRC32();
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                crc.update(buffer, 0, read);
+                            }
+                        }
+                        if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+                            return "CRC mismatch in " + entry.getName();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<String> result : results) {
+                String problem = result.get();
+                if (problem != null) {
+                    return problem;
+                }
+            }
+            return null;
+        } catch (ExecutionException e) {
+            return "entry could not be read: " + e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying " + file, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive at offset " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+}